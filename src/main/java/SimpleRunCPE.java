@@ -12,6 +12,8 @@ import org.apache.uima.collection.StatusCallbackListener;
 import org.apache.uima.collection.metadata.CpeDescription;
 import org.apache.uima.util.XMLInputSource;
 
+import util.webservice.WebAPIServiceProxyFactory;
+
 /**
  * Main Class that runs a Collection Processing Engine (CPE). This class reads a CPE Descriptor as a
  * command-line argument and instantiates the CPE. It also registers a callback listener with the
@@ -152,6 +154,8 @@ public class SimpleRunCPE extends Thread {
 
       System.out.println("\n\n ------------------ PERFORMANCE REPORT ------------------\n");
       System.out.println(mCPE.getPerformanceReport().toString());
+      System.out.println("\n\n ------------------ SERVICE CACHE REPORT ------------------\n");
+      System.out.println(WebAPIServiceProxyFactory.getStatistics());
       // stop the JVM. Otherwise main thread will still be blocked waiting for
       // user to press Enter.
       System.exit(1);
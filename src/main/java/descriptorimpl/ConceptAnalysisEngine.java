@@ -3,6 +3,7 @@ package descriptorimpl;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_component.JCasAnnotator_ImplBase;
@@ -13,7 +14,9 @@ import org.apache.uima.resource.ResourceInitializationException;
 
 import concept.prf.FindingPseudoRelevanceFeedback;
 import concept.prf.PseudoRelevanceFeedbackFactory;
+import document.stemmer.KrovetzStemmer;
 import util.TypeFactory;
+import util.webservice.CachedWebAPIServiceProxy;
 import util.webservice.WebAPIServiceProxy;
 import util.webservice.WebAPIServiceProxyFactory;
 import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse;
@@ -29,14 +32,23 @@ import edu.cmu.lti.oaqa.type.retrieval.ConceptSearchResult;
  */
 public class ConceptAnalysisEngine extends JCasAnnotator_ImplBase {
 
+  /**
+   * Start the triple and document searches for a question while its concepts are searched, so
+   * that the later engines find their results in the cache. Off by default: it adds concurrent
+   * load to the endpoints the limiters protect.
+   */
+  public static boolean PREFETCH = false;
+
   private WebAPIServiceProxy service;
   private FindingPseudoRelevanceFeedback prf;
+  private KrovetzStemmer stemmer;
 
   @Override
   public void initialize(UimaContext aContext) throws ResourceInitializationException {
     super.initialize(aContext);
     this.service = WebAPIServiceProxyFactory.getInstance();
     this.prf = PseudoRelevanceFeedbackFactory.getFindingPseudoRelevanceFeedback();
+    this.stemmer = new KrovetzStemmer();
   }
 
   @Override
@@ -48,6 +60,12 @@ public class ConceptAnalysisEngine extends JCasAnnotator_ImplBase {
       String query = q.getText();
       /* TODO */
       //query = new QueryThingy().playWithQuery(query);
+      // only the cached proxy keeps what a prefetch brings back
+      if (PREFETCH && service instanceof CachedWebAPIServiceProxy) {
+        service.getEntitiesFromQueryAsync(query).whenComplete(logFailure("entities", query));
+        service.getPubMedDocumentsFromQueryAsync(DocumentRetrieval_AE.buildQuery(query, stemmer))
+                .whenComplete(logFailure("documents", query));
+      }
       List<Finding> findings = service.getFindingsFromQuery(query);
       findings = prf.getPRF(findings);
       Collections.sort(findings, new Comparator<Finding>() {
@@ -67,6 +85,18 @@ public class ConceptAnalysisEngine extends JCasAnnotator_ImplBase {
     }
   }
 
+  /**
+   * Nobody waits for a prefetch, so its failure is only logged; the engine that needs the results
+   * fetches them again
+   */
+  private static <T> BiConsumer<T, Throwable> logFailure(String kind, String query) {
+    return (results, e) -> {
+      if (e != null)
+        System.out.println("Exception: prefetch of " + kind + " for \"" + query + "\" failed: "
+                + e.getMessage());
+    };
+  }
+
   /**
    * Creates a Concept type and adds it to the type system
    * @param jcas
@@ -111,6 +111,16 @@ public class DocumentRetrieval_AE extends JCasAnnotator_ImplBase {
 
   }
 
+  /**
+   * Builds the PubMed query for a question
+   * @param questionText
+   * @param stemmer
+   * @return the expanded query sent to the document search
+   */
+  public static String buildQuery(String questionText, KrovetzStemmer stemmer) {
+    return QueryExpander.expandQuery(questionText.replace('?', ' '), stemmer);
+  }
+
   public String qeWithConcept(String raw) {
     for (String c : conceptSet) {
       if (raw.contains(c)) {
@@ -148,39 +158,38 @@ public class DocumentRetrieval_AE extends JCasAnnotator_ImplBase {
       iter.moveToNext();
       Question question = (Question) iter.get();
       QueryInfo query = new QueryInfo(question.getText(), stemmer);
-      String questionText = question.getText().replace('?', ' ');
-      
       // Possible QEs
-      questionText = QueryExpander.expandQuery(questionText, stemmer);
+      String questionText = buildQuery(question.getText(), stemmer);
       //questionText = qeWithConcept(questionText);
       
       //System.out.println("###: " + questionText);
       outQuestions.println(questionText);
 
-      // Obtain relevant documents from web service
-      List<PubMedSearchServiceResponse.Document> list = service
-              .getPubMedDocumentsFromQuery(questionText);
-
+      // Obtain relevant documents from web service. Pages of results are added to the
+      // collection statistics as they arrive, while later pages are still being fetched;
+      // they arrive in result order so that the statistics do not depend on timing.
       // Write document information into instances of class DocInfo
       // Also accumulates the collection statistics
-      for (PubMedSearchServiceResponse.Document d : list) {
-
-        String title = d.getTitle();
-        String abstractText = d.getDocumentAbstract();
-        String year = d.getYear();
-        String pmid = d.getPmid();
-        //System.out.println("PMID:" + d.getPmid());
-
-        Map<String, String> fieldTextMap = new HashMap<String, String>();
-        fieldTextMap.put("title", title);
-        fieldTextMap.put("abstract", abstractText);
-
-        if (title != null && abstractText != null && pmid != null && fieldTextMap != null && year != null) {
-          DocInfo docInfo = new DocInfo("http://www.ncbi.nlm.nih.gov/pubmed/" + pmid, pmid,
-                  fieldTextMap, year, stemmer);
-          cStat.addDoc(docInfo); // Update collection statistics
+      service.streamPubMedDocumentsFromQuery(questionText, page -> {
+        for (PubMedSearchServiceResponse.Document d : page) {
+
+          String title = d.getTitle();
+          String abstractText = d.getDocumentAbstract();
+          String year = d.getYear();
+          String pmid = d.getPmid();
+          //System.out.println("PMID:" + d.getPmid());
+
+          Map<String, CharSequence> fieldTextMap = new HashMap<String, CharSequence>();
+          fieldTextMap.put("title", title);
+          fieldTextMap.put("abstract", abstractText);
+
+          if (title != null && abstractText != null && pmid != null && fieldTextMap != null && year != null) {
+            DocInfo docInfo = new DocInfo("http://www.ncbi.nlm.nih.gov/pubmed/" + pmid, pmid,
+                    fieldTextMap, year, stemmer);
+            cStat.addDoc(docInfo); // Update collection statistics
+          }
         }
-      }
+      });
       cStat.finalize();
       // At this point, we have finished collecting all candidate documents
       // and constructed the collection statistics
@@ -206,8 +215,8 @@ public class DocumentRetrieval_AE extends JCasAnnotator_ImplBase {
         // System.out.println(p.getValue());
         Document d = TypeFactory.createDocument(aJCas,
                 "http://www.ncbi.nlm.nih.gov/pubmed/" + p.getKey().pmid,
-                p.getKey().fieldTextMap.get("abstract"), rank, query.text,
-                p.getKey().fieldTextMap.get("title"), p.getKey().pmid);
+                p.getKey().fieldTextMap.get("abstract").toString(), rank, query.text,
+                p.getKey().fieldTextMap.get("title").toString(), p.getKey().pmid);
         d.addToIndexes();
         rank++;
       }
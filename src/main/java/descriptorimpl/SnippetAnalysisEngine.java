@@ -12,8 +12,6 @@ import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.FSIterator;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 import snippet.SentenceInfo;
 import snippet.scoring.adapter.CandidateAnswer;
@@ -79,6 +77,13 @@ public class SnippetAnalysisEngine extends JCasAnnotator_ImplBase {
     // Stores all sentences
     ArrayList<SentenceInfo> allSentences = new ArrayList<SentenceInfo>();
     
+    // Also store queries as sentences for generality
+    SentenceInfo questionInfo = new SentenceInfo(question.getText(), null, -1, -1, null);
+    
+    // The scoring is implmented by Nik
+    snippet.scoring.factory.Question query = new snippet.scoring.factory.QuestionAdapter(questionInfo);
+    Similarity similarity = SimilarityFactory.getNewSimilarity(SimilarityFactory.weighted);
+
     // Iterate over all relevant documents to get their gull text if available
     try {
       FSIterator<?> it;
@@ -93,28 +98,33 @@ public class SnippetAnalysisEngine extends JCasAnnotator_ImplBase {
         try {
           String pmid = doc.getDocId();
           String uri = doc.getUri();
-          JSONObject docFull = service.getDocFullTextJSon(pmid);
-          JSONArray sectionArr = docFull.getJSONArray("sections");
-          //System.out.println(sectionArr.length());
 
-          Map<String, String> fieldTextMap = new HashMap<String, String>();
+          Map<String, CharSequence> fieldTextMap = new HashMap<String, CharSequence>();
           fieldTextMap.put("title", doc.getTitle());
-          for (int i = 0; i < sectionArr.length(); i++) {
-            fieldTextMap.put("section:" + i, (String) sectionArr.get(i));
-          }
           DocInfo docInfo = new DocInfo(uri, pmid, fieldTextMap, null, stemmer);
-          cStat.addDoc(docInfo);
+          List<SentenceInfo> docSentences = new ArrayList<SentenceInfo>();
 
-          for (int i = 0; i < sectionArr.length(); i++) {
-            String section = (String) sectionArr.get(i);
-            List<SentenceInfo> sentences = TextUtils.stanfordSentenceTokenizer(section);
+          // each section is split and scored as soon as it has been read; sections from the
+          // cache are views of text kept off the heap
+          boolean complete = service.streamDocFullTextSections(pmid, (i, section) -> {
+            // the terms are counted by one pass over the view
+            docInfo.addField("section:" + i, section, stemmer);
+            // the Stanford pipeline takes a String, so the section is decoded once for it and
+            // dropped once it has been split
+            List<SentenceInfo> sentences = TextUtils.stanfordSentenceTokenizer(section.toString());
             for (SentenceInfo sentence : sentences) {
               sentence.hostDoc = docInfo;
               sentence.sectionIndex = "sections." + i;
-              allSentences.add(sentence);
+              CandidateAnswer answer = new CandidateAnswerAdapter(sentence);
+              sentence.score = similarity.computeSimilarity(query, answer);
+              docSentences.add(sentence);
               //System.out.println(sentence);
             }
-          }
+          });
+          if (!complete)
+            continue;
+          cStat.addDoc(docInfo);
+          allSentences.addAll(docSentences);
         } catch (Exception e) {
           // TODO Auto-generated catch block
         }
@@ -125,19 +135,6 @@ public class SnippetAnalysisEngine extends JCasAnnotator_ImplBase {
       e.printStackTrace();
     }
     
-    // Also store queries as sentences for generality
-    SentenceInfo questionInfo = new SentenceInfo(question.getText(), null, -1, -1, null);
-    
-    // The scoring is implmented by Nik
-    snippet.scoring.factory.Question query = new snippet.scoring.factory.QuestionAdapter(questionInfo);
-    Similarity similarity = SimilarityFactory.getNewSimilarity(SimilarityFactory.weighted);
-
-    // Score each sentence
-    for (SentenceInfo sentence : allSentences) {
-      CandidateAnswer answer = new CandidateAnswerAdapter(sentence);
-      sentence.score = similarity.computeSimilarity(query, answer);
-    }
-    
     
     // Sorted the scored sentences
     allSentences = (ArrayList<SentenceInfo>) allSentences.stream()
@@ -157,7 +154,7 @@ public class SnippetAnalysisEngine extends JCasAnnotator_ImplBase {
     allSentences.stream()
 					.map(snippet -> TypeFactory.createPassage(aJCas, snippet.hostDoc.uri, snippet.score.doubleValue(), snippet.content, -1,
 					        _query, null, new ArrayList<>(),
-					        snippet.hostDoc.fieldTextMap.get("title"), snippet.hostDoc.pmid, snippet.startIndex, snippet.endIndex,
+					        snippet.hostDoc.fieldTextMap.get("title").toString(), snippet.hostDoc.pmid, snippet.startIndex, snippet.endIndex,
 							"" + snippet.sectionIndex, "" + snippet.sectionIndex, TypeConstants.ASPECTS_UNKNOWN))
 					.forEachOrdered(Passage::addToIndexes);
   }
@@ -18,7 +18,7 @@ public class DocInfo {
   public String pmid;
   public String uri;
 
-  public Map<String, String> fieldTextMap;
+  public Map<String, CharSequence> fieldTextMap;
   
   public String year;
 
@@ -38,37 +38,39 @@ public class DocInfo {
    * 
    * @param uri from PubMed
    * @param pmid from PubMed
-   * @param fieldTextMap The actual content of the document in raw texts
+   * @param fieldTextMap The actual content of the document in raw texts, which may be views of
+   *          text kept off the heap
    * @param year from PubMed
    * @param stemmer user specified
    * 
    * Populates all fields.
    */
-  public DocInfo(String uri, String pmid, Map<String, String> fieldTextMap, String year, KrovetzStemmer stemmer) {
+  public DocInfo(String uri, String pmid, Map<String, ? extends CharSequence> fieldTextMap,
+          String year, KrovetzStemmer stemmer) {
     super();
     this.pmid = pmid;
     this.uri = uri;
-    this.fieldTextMap = fieldTextMap;
+    this.fieldTextMap = new HashMap<String, CharSequence>();
     this.year = year;
 
     fieldTFMap = new HashMap<String, Map<String, Integer>>();
     fieldLenMap = new HashMap<String, Integer>();
     
-    for(Entry<String, String> e: fieldTextMap.entrySet()) {
-      String fieldName = e.getKey();
-      String fieldRawText = e.getValue();
-      
-      String rawFiledText= String.copyValueOf(fieldRawText.toCharArray());
-      String[] fieldTermArray = TextProcessingTools.getFormattedTermArray(rawFiledText, stemmer);
-      fieldLenMap.put(fieldName, fieldTermArray.length);
-      fieldTFMap.put(fieldName, TextProcessingTools.getTFMap(fieldTermArray));
-    }
-    
     length = 0;
-    for(Integer l: fieldLenMap.values()) {
-      length += l;
+    for(Entry<String, ? extends CharSequence> e: fieldTextMap.entrySet()) {
+      addField(e.getKey(), e.getValue(), stemmer);
     }
   }
-  
+
+  /**
+   * Adds the text of one more field, e.g. a full text section as soon as it has been read
+   */
+  public void addField(String fieldName, CharSequence fieldRawText, KrovetzStemmer stemmer) {
+    String[] fieldTermArray = TextProcessingTools.getFormattedTermArray(fieldRawText, stemmer);
+    Integer oldLength = fieldLenMap.put(fieldName, fieldTermArray.length);
+    fieldTextMap.put(fieldName, fieldRawText);
+    fieldTFMap.put(fieldName, TextProcessingTools.getTFMap(fieldTermArray));
+    length += fieldTermArray.length - (oldLength == null ? 0 : oldLength);
+  }
 
 }
@@ -1,10 +1,9 @@
 package document.scoring;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
 
 import document.DocInfo;
@@ -16,16 +15,28 @@ import document.DocInfo;
  */
 public class CollectionStatistics {
   /**
-   * It sores the collection-wise term frequency.
+   * This stores the internal ID's of existing terms in the collection.
+   * ID's are dense, in the order the terms were first seen, and index the arrays below.
+   * Useful when generating term vectors
+   */
+  public Map<String, Integer> termID_Map;
+  
+  /**
+   * Collection-wise term frequency by term ID.
    * This collapses field-level statistics
    */
-  public Map<String, Integer> collectionTermFreqMap;
+  public int[] collectionTermFreq;
   
   /**
-   * This stores the internal ID's of existing terms in the collection.
-   * Useful when generating term vectors
+   * Number of documents that contain a term, by term ID. Set up by finalize()
    */
-  public Map<String, Integer> termID_Map;
+  public int[] docFreq;
+  
+  /**
+   * Inverted list by term ID: the positions in docList of the documents that contain the term,
+   * in ascending order. Set up by finalize()
+   */
+  public int[][] postings;
   
   /**
    * Maintain a roster of documents in the collection
@@ -47,18 +58,15 @@ public class CollectionStatistics {
    */
   public int V;
   
-  /**
-   * Inverted list that gets all documents that contain a particular term
-   */
-  public Map<String, Set<DocInfo>> invList;
-  
   /**
    * Trivial instantiation, but needs to add documents to populate
    */
   public CollectionStatistics() {
     super();
-    collectionTermFreqMap = new HashMap<String, Integer>();
     termID_Map  = new HashMap<String, Integer>();
+    collectionTermFreq = new int[1024];
+    docFreq = new int[0];
+    postings = new int[0][];
     docList = new ArrayList<DocInfo>();
     size = 0;
     numDocs = 0;
@@ -76,21 +84,21 @@ public class CollectionStatistics {
     numDocs = docList.size();
     size += d.length;
     for(Map<String, Integer> fieldTFVec: d.fieldTFMap.values()) {
-      update_collectionTermFreqMap(fieldTFVec);
+      update_collectionTermFreq(fieldTFVec);
     }
-    
-    V = collectionTermFreqMap.size();
   }
   
-  public void update_collectionTermFreqMap(Map<String, Integer> docTermFreqVec) {
+  private void update_collectionTermFreq(Map<String, Integer> docTermFreqVec) {
     for(Entry<String, Integer> e: docTermFreqVec.entrySet()) {
-      
-      
-      if(!collectionTermFreqMap.containsKey(e.getKey())) {
-        collectionTermFreqMap.put(e.getKey(), 0);
+      Integer id = termID_Map.get(e.getKey());
+      if(id == null) {
+        id = V++;
+        termID_Map.put(e.getKey(), id);
+        if(id == collectionTermFreq.length) {
+          collectionTermFreq = Arrays.copyOf(collectionTermFreq, Math.max(2 * id, 1024));
+        }
       }
-      collectionTermFreqMap.put(e.getKey(), collectionTermFreqMap.get(e.getKey())+e.getValue());
-      
+      collectionTermFreq[id] += e.getValue();
     }
   }
   
@@ -100,30 +108,40 @@ public class CollectionStatistics {
    */
   public void finalize() {
     
-    // Set up termID_Map
-    int idx = 0;
-    for(String term: collectionTermFreqMap.keySet()) {
-      termID_Map.put(term, idx);
-      idx++;
-    }
-    
-    invList = new HashMap<String, Set<DocInfo>>();
+    collectionTermFreq = Arrays.copyOf(collectionTermFreq, V);
     
-    // We initiliaze here because there are some OOV terms from queries
-    // For those cases, invlist should simply return an empty list
-    for(String term: collectionTermFreqMap.keySet()) {
-      if(!invList.containsKey(term)) {
-        invList.put(term, new HashSet<DocInfo>());
+    // A document counts once for a term, however many of its fields contain it
+    docFreq = new int[V];
+    int[] lastDoc = new int[V];
+    Arrays.fill(lastDoc, -1);
+    for(int d=0; d<docList.size(); d++) {
+      for(Map<String, Integer> fieldTfVec: docList.get(d).fieldTFMap.values()) {
+        for(String term: fieldTfVec.keySet()) {
+          int id = termID_Map.get(term);
+          if(lastDoc[id] != d) {
+            lastDoc[id] = d;
+            docFreq[id]++;
+          }
+        }
       }
     }
     
-    for(DocInfo d: docList) {
-      for(Map<String, Integer> fieldTfVec: d.fieldTFMap.values()) {
+    postings = new int[V][];
+    for(int id=0; id<V; id++) {
+      postings[id] = new int[docFreq[id]];
+    }
+    int[] filled = new int[V];
+    for(int d=0; d<docList.size(); d++) {
+      for(Map<String, Integer> fieldTfVec: docList.get(d).fieldTFMap.values()) {
         for(String term: fieldTfVec.keySet()) {
-          invList.get(term).add(d);
+          int id = termID_Map.get(term);
+          int n = filled[id];
+          if(n == 0 || postings[id][n-1] != d) {
+            postings[id][n] = d;
+            filled[id]++;
+          }
         }
       }
-      
     }
     
     /*System.out.println(V);
@@ -132,6 +150,36 @@ public class CollectionStatistics {
     
   }
   
+  /**
+   * 
+   * @param term
+   * @return the ID of term, or -1 if it is not in the collection (e.g. an OOV query term)
+   */
+  public int getTermID(String term) {
+    Integer id = termID_Map.get(term);
+    return id == null ? -1 : id;
+  }
+  
+  /**
+   * 
+   * @param term
+   * @return collection-wise frequency of term, 0 if it is not in the collection
+   */
+  public int getCollectionTermFreq(String term) {
+    int id = getTermID(term);
+    return id < 0 ? 0 : collectionTermFreq[id];
+  }
+  
+  /**
+   * 
+   * @param term
+   * @return number of documents that contain term, 0 if it is not in the collection
+   */
+  public int getDocFreq(String term) {
+    int id = getTermID(term);
+    return id < 0 || id >= docFreq.length ? 0 : docFreq[id];
+  }
+  
  /**
   * 
   * @param termFreqVec
@@ -139,7 +187,7 @@ public class CollectionStatistics {
   */
  public double[] getVec(Map<String, Integer> termFreqVec) {
 
-   double[] ret = new double[collectionTermFreqMap.size()];
+   double[] ret = new double[V];
    for(int i=0; i<ret.length; i++) {
      ret[i] = 0d;
    }
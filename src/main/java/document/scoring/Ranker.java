@@ -82,10 +82,7 @@ public class Ranker {
       int tf_d = termFreqVec.containsKey(term) ? termFreqVec.get(term) : 0;
       int tf_q = query.termFreqVec.get(term);
       
-      double df_t = 0; // MUST NOT BE SMOOTHED
-      if(stat.invList.containsKey(term)) {
-        df_t = stat.invList.get(term).size(); 
-      }
+      double df_t = stat.getDocFreq(term); // MUST NOT BE SMOOTHED
 
       
       double RSJweight = Math.log((numTotalDoc-df_t+0.5)/(df_t+0.5));
@@ -117,10 +114,7 @@ public class Ranker {
     for(String term: query.termFreqVec.keySet()) {
 
       double tf_d = termFeqVec.containsKey(term) ? termFeqVec.get(term) : 0;
-      int tf_C = 1;
-      if(stat.collectionTermFreqMap.containsKey(term)) {
-        tf_C += stat.collectionTermFreqMap.get(term);
-      }
+      int tf_C = 1 + stat.getCollectionTermFreq(term);
       double termScpre = ( doclen/(doclen+mu) )*(tf_d/doclen)+(mu/(mu+doclen))*(tf_C/(double)stat.size);
       docScore += query.termFreqVec.get(term)*Math.log(termScpre);
     }
@@ -146,10 +140,7 @@ public class Ranker {
 
       int tf_d = termFeqVec.containsKey(term) ? termFeqVec.get(term) : 0;
       long C_Size = stat.size;
-      int tf_C = 1;
-      if(stat.collectionTermFreqMap.containsKey(term)) {
-        tf_C += stat.collectionTermFreqMap.get(term);
-      }
+      int tf_C = 1 + stat.getCollectionTermFreq(term);
 
       double dirScore = ( doclen/(doclen+mu) )*(tf_d/doclen)+(mu/(mu+doclen))*(tf_C/(double)stat.size);
 
@@ -179,10 +170,7 @@ public class Ranker {
       double tf_d = termFeqVec.containsKey(term) ? termFeqVec.get(term) : 0;
       if(tf_d==0){continue;}  // As in formula 18 of XQL paper, it only sum over terms which are in both the query and the document
 
-      int tf_C = 1;
-      if(stat.collectionTermFreqMap.containsKey(term)) {
-        tf_C += stat.collectionTermFreqMap.get(term);
-      }
+      int tf_C = 1 + stat.getCollectionTermFreq(term);
       //double P__q_CwoD = tf_c/(Statistics.collectionSize-docTermFreq);
       double P__q_C = tf_C/(double)(stat.size);
 
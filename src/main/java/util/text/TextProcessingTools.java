@@ -1,6 +1,8 @@
 package util.text;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import document.stemmer.KrovetzStemmer;
@@ -33,6 +35,46 @@ public class TextProcessingTools {
     return textSplit;
   }
   
+  /**
+   * Same terms as {@link #getFormattedTermArray(String, KrovetzStemmer)}, found by scanning the
+   * text rather than copying it, so that text kept off the heap is not decoded as a whole.
+   */
+  public static String[] getFormattedTermArray(CharSequence rawText, KrovetzStemmer stemmer) {
+    List<String> terms = new ArrayList<String>();
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i < rawText.length(); i++) {
+      char c = rawText.charAt(i);
+      if (isSeparator(c)) {
+        if (term.length() > 0) {
+          terms.add(term.toString());
+          term.setLength(0);
+        }
+      } else {
+        term.append(c);
+      }
+    }
+    if (term.length() > 0)
+      terms.add(term.toString());
+    // String.split keeps a leading empty term, and the empty text as one empty term
+    if (rawText.length() == 0 || (!terms.isEmpty() && isSeparator(rawText.charAt(0))))
+      terms.add(0, "");
+    String[] textSplit = terms.toArray(new String[terms.size()]);
+    if(stemmer!=null) {
+      for(int i=0; i<textSplit.length; i++) {
+        textSplit[i] = stemmer.stem(textSplit[i]);
+      }
+    }
+    return textSplit;
+  }
+
+  /**
+   * @return true for the chars matched by \s and \p{Punct}
+   */
+  private static boolean isSeparator(char c) {
+    return c == ' ' || (c >= '\t' && c <= '\r') || (c >= '!' && c <= '/')
+            || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+  }
+
   public static Map<String, Integer> getTFMap(String[] termArray){
     Map<String, Integer> tfMap = new HashMap<String, Integer>();
     for(String t: termArray) {
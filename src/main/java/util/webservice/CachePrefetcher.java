@@ -0,0 +1,155 @@
+package util.webservice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import json.gson.TestQuestion;
+import json.gson.TestSet;
+import descriptorimpl.DocumentRetrieval_AE;
+import document.stemmer.KrovetzStemmer;
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
+
+/**
+ * Fetches every service response the pipeline will ask for on a question file into the cache
+ * before the CPE runs, so that the run itself makes no remote calls. For each question these are
+ * the concepts and triples of the question text, the documents of the expanded query of
+ * DocumentRetrieval_AE and the full texts of those documents. Queries issued by pseudo relevance
+ * feedback depend on the results and are not prefetched.
+ */
+public class CachePrefetcher {
+
+  private final WebAPIServiceProxy service;
+
+  private final ExecutorService pool;
+
+  private final Set<String> pmids = ConcurrentHashMap.newKeySet();
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * @param service the cached proxy to fill
+   * @param threads number of lookups running at a time
+   */
+  public CachePrefetcher(WebAPIServiceProxy service, int threads) {
+    this.service = service;
+    this.pool = Executors.newFixedThreadPool(threads);
+  }
+
+  private static void printUsageMessage() {
+    System.out.println(" Arguments to the program are as follows : \n"
+            + "  [-questions <file>]   BioASQ question file or classpath resource\n"
+            + "                        (default /BioASQ-SampleData1B.json)\n"
+            + "  [-threads <n>]        lookups running at a time (default 8)\n"
+            + "  [-nofulltext]         do not prefetch the full texts of the documents");
+  }
+
+  public static void main(String[] args) throws Exception {
+    String questions = "/BioASQ-SampleData1B.json";
+    int threads = 8;
+    boolean fullText = true;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-questions") && i + 1 < args.length)
+        questions = args[++i];
+      else if (args[i].equals("-threads") && i + 1 < args.length)
+        threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-nofulltext"))
+        fullText = false;
+      else {
+        printUsageMessage();
+        System.exit(1);
+      }
+    }
+    List<String> texts = loadQuestionTexts(questions);
+    CachePrefetcher prefetcher = new CachePrefetcher(WebAPIServiceProxyFactory.getInstance(),
+            threads);
+    long start = System.currentTimeMillis();
+    prefetcher.prefetch(texts, fullText);
+    System.out.println(String.format("Prefetched %d lookups for %d questions in %.1f s"
+            + " (%d failed)", prefetcher.calls.get(), texts.size(),
+            (System.currentTimeMillis() - start) / 1000.0, prefetcher.failures.get()));
+    System.exit(0);
+  }
+
+  /**
+   * @return the question texts of the file, cleaned up the way QuestionReader does it
+   */
+  public static List<String> loadQuestionTexts(String path) throws IOException {
+    File file = new File(path);
+    List<String> texts = new ArrayList<String>();
+    try (InputStream in = file.exists() ? new FileInputStream(file) : CachePrefetcher.class
+            .getResourceAsStream(path)) {
+      if (in == null)
+        throw new IOException("No such question file: " + path);
+      for (TestQuestion question : TestSet.load(in)) {
+        if (question.getBody() != null)
+          texts.add(question.getBody().trim().replaceAll("\\s+", " "));
+      }
+    }
+    return texts;
+  }
+
+  /**
+   * Runs all lookups for the questions and waits for them to finish
+   */
+  public void prefetch(List<String> texts, boolean fullText) {
+    KrovetzStemmer stemmer = new KrovetzStemmer();
+    Set<String> questions = new LinkedHashSet<String>(texts);
+    Set<String> documentQueries = new LinkedHashSet<String>();
+    for (String text : questions) {
+      documentQueries.add(DocumentRetrieval_AE.buildQuery(text, stemmer));
+    }
+    List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>();
+    for (String text : questions) {
+      pending.add(run(() -> service.getFindingsFromQuery(text)));
+      pending.add(run(() -> service.getEntitiesFromQuery(text)));
+    }
+    for (String query : documentQueries) {
+      CompletableFuture<List<Document>> documents = CompletableFuture.supplyAsync(() -> {
+        calls.incrementAndGet();
+        return service.getPubMedDocumentsFromQuery(query);
+      }, pool);
+      pending.add(fullText ? documents.thenCompose(this::prefetchFullTexts) : documents);
+    }
+    for (CompletableFuture<?> f : pending) {
+      try {
+        f.join();
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        System.out.println("Exception: " + e.getMessage());
+      }
+    }
+    pool.shutdown();
+  }
+
+  private CompletableFuture<Void> prefetchFullTexts(List<Document> documents) {
+    List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>();
+    if (documents == null)
+      documents = new ArrayList<Document>();
+    for (Document d : documents) {
+      // documents without a PMID never reach the snippet search
+      if (d.getPmid() != null && pmids.add(d.getPmid()))
+        pending.add(run(() -> service.getDocFullTextSections(d.getPmid())));
+    }
+    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
+  }
+
+  private CompletableFuture<Void> run(Runnable lookup) {
+    return CompletableFuture.runAsync(() -> {
+      calls.incrementAndGet();
+      lookup.run();
+    }, pool);
+  }
+}
@@ -1,33 +1,37 @@
 package util.webservice;
 
 import java.io.IOException;
-import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import org.apache.http.client.ClientProtocolException;
 import org.json.JSONObject;
 
-import util.datastructure.BetterMap;
-
-import com.cedarsoftware.util.io.JsonReader;
-import com.cedarsoftware.util.io.JsonWriter;
-
-import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse;
+import util.webservice.cache.DocumentResultCache;
+import util.webservice.cache.Fetched;
+import util.webservice.cache.IndexSnapshot;
+import util.webservice.cache.ResultCache;
+import util.webservice.cache.ResultCacheFactory;
+import util.webservice.cache.SectionStore;
+import util.webservice.cache.WriteBehind;
 import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Entity;
 import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse.Finding;
 import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
-import edu.cmu.lti.oaqa.type.kb.Triple;
 
 /**
  * 
  * @author nwolfe and pyadapad
- * Class which caches results from PubMed API
+ * Class which caches results from PubMed API. Each kind of result is kept in an append-only
+ * segment file with a key index (see {@link ResultCache}); with LAZY_LOAD only the index is read
+ * at startup and results are decoded when first asked for. One instance is shared by all
+ * analysis engines; concurrent misses on the same query make a single remote call.
  *
  */
 public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
@@ -36,15 +40,87 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
 
   public boolean APPLY_YEAR_CHANGE_HACK = true;
 
-  private BetterMap<String, Finding> cachedFindings;
+  /**
+   * Decode cached results on first use instead of loading everything at startup
+   */
+  public static boolean LAZY_LOAD = true;
+
+  public static String CACHE_PATH = "src/main/resources/cache/";
+
+  /**
+   * Answer cache misses with null instead of calling the services (used by {@link StandInServer}
+   * when it replays recorded responses)
+   */
+  public static boolean OFFLINE = false;
+
+  /**
+   * Approximate heap bytes each cache kind may spend on decoded results in lazy mode. The least
+   * recently used results are dropped beyond that and decoded again from disk when needed.
+   */
+  public static long FINDINGS_MEMORY_BUDGET = 16L << 20;
+
+  public static long ENTITIES_MEMORY_BUDGET = 16L << 20;
+
+  /**
+   * Query -> PMID lists only; the abstracts have their own budget
+   */
+  public static long DOCUMENTS_MEMORY_BUDGET = 4L << 20;
+
+  public static long ABSTRACTS_MEMORY_BUDGET = 32L << 20;
+
+  /**
+   * Full texts are by far the largest entries
+   */
+  public static long FULL_TEXT_MEMORY_BUDGET = 32L << 20;
+
+  /**
+   * Milliseconds a non-empty result stays valid; -1 keeps it for ever
+   */
+  public static long RESULTS_TTL = -1;
+
+  /**
+   * Milliseconds an empty result stays valid before the query is sent again; -1 keeps it for ever
+   */
+  public static long EMPTY_RESULTS_TTL = 7L * 24 * 60 * 60 * 1000;
+
+  /**
+   * Milliseconds a result stays valid when some of the calls behind it failed or timed out, e.g.
+   * one of the ontology searches of a query; 0 not to cache such results
+   */
+  public static long PARTIAL_RESULTS_TTL = 10L * 60 * 1000;
+
+  /**
+   * Leave writing new entries to a background writer that commits them in groups (see
+   * {@link WriteBehind} for when), so that a miss returns as soon as the result is in memory
+   */
+  public static boolean WRITE_BEHIND = true;
 
-  private BetterMap<String, Entity> cachedEntities;
+  /**
+   * Coordinate with other processes using the same cache directory, so that a query one of them
+   * has fetched and written is not fetched again by the others
+   */
+  public static boolean SHARED_CACHE = true;
+
+  /**
+   * Save the key indexes of the cache to one file (see {@link IndexSnapshot}) when the JVM exits,
+   * and open the cache from it in the next run while it is current
+   */
+  public static boolean INDEX_SNAPSHOT = true;
 
-  private BetterMap<String, Document> cachedDocuments;
+  private ResultCache<Finding> cachedFindings;
 
-  private BetterMap<String, JSONObject> cachedMetal;
+  private ResultCache<Entity> cachedEntities;
 
-  private String cachePath = "src/main/resources/cache/";
+  private DocumentResultCache cachedDocuments;
+
+  private ResultCache<JSONObject> cachedMetal;
+
+  /**
+   * Sections of the cached full texts, memory-mapped so that they stay off the heap
+   */
+  private SectionStore cachedSections;
+
+  private String cachePath = CACHE_PATH;
 
   private final String findings = "findings/";
 
@@ -56,20 +132,59 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
 
   public CachedWebAPIServiceProxy() {
     super();
+    this.cachedFindings = ResultCacheFactory.newFindingCache(cachePath, APPLY_YEAR_CHANGE_HACK,
+            LAZY_LOAD, FINDINGS_MEMORY_BUDGET);
+    this.cachedEntities = ResultCacheFactory.newEntityCache(cachePath, APPLY_YEAR_CHANGE_HACK,
+            LAZY_LOAD, ENTITIES_MEMORY_BUDGET);
+    this.cachedDocuments = ResultCacheFactory.newDocumentCache(cachePath, APPLY_YEAR_CHANGE_HACK,
+            LAZY_LOAD, DOCUMENTS_MEMORY_BUDGET, ABSTRACTS_MEMORY_BUDGET);
+    this.cachedMetal = ResultCacheFactory.newFullTextCache(cachePath, APPLY_YEAR_CHANGE_HACK,
+            LAZY_LOAD, FULL_TEXT_MEMORY_BUDGET);
+    this.cachedSections = new SectionStore(cachePath);
+    for (ResultCache<?> cache : caches()) {
+      cache.setTimeToLive(RESULTS_TTL, EMPTY_RESULTS_TTL);
+      cache.setPartialTimeToLive(PARTIAL_RESULTS_TTL);
+      cache.setWriteBehind(WRITE_BEHIND);
+      cache.setShared(SHARED_CACHE);
+    }
+    cachedSections.setWriteBehind(WRITE_BEHIND);
     if (CLEAR_CACHE) {
       clearCache();
       System.exit(0);
     }
+    if (INDEX_SNAPSHOT) {
+      IndexSnapshot snapshot = IndexSnapshot.read(cachePath);
+      if (snapshot != null)
+        snapshot.apply(caches(), Collections.singletonList(cachedSections.getStore()));
+      Runtime.getRuntime().addShutdownHook(new Thread(this::writeIndexSnapshot,
+              "cache-index-snapshot"));
+    }
     try {
-      this.cachedFindings = getCachedFindings();
-      this.cachedEntities = getCachedEntities();
-      this.cachedDocuments = getCachedDocuments();
-      this.cachedMetal = getCachedMetal();
+      cachedFindings.open();
+      cachedEntities.open();
+      cachedDocuments.open();
+      cachedMetal.open();
+      cachedSections.open();
     } catch (Exception e) {
       System.out.println("Exception: " + e.getMessage());
     }
   }
 
+  private List<ResultCache<?>> caches() {
+    return Arrays.<ResultCache<?>> asList(cachedFindings, cachedEntities, cachedDocuments,
+            cachedMetal);
+  }
+
+  private void writeIndexSnapshot() {
+    try {
+      cachedSections.flush();
+      IndexSnapshot.write(cachePath, caches(), Collections.singletonList(cachedSections
+              .getStore()));
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
+    }
+  }
+
   public void clearCache() {
     String[] subdirs = { findings, entities, documents, snippets};
     for (String subdir : subdirs) {
@@ -89,110 +204,104 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
         System.out.println("IOException: " + e.getMessage());
       }
     }
-  }
-
-  private class FileReadHelper<T> {
-    public BetterMap<String, T> getStuff(String subdir) throws Exception {
-      BetterMap<String, T> map = new BetterMap<String, T>();
-      BetterMap<String, Object> jsonMap = getFilesInDirectory(subdir);
-      for (String query : jsonMap.keySet()) {
-        ArrayList<Object> jarr = jsonMap.get(query);
-        if (jarr.isEmpty()) {
-          map.addItem(query, null);
-        } else {
-          for (Object json : jarr) {
-            @SuppressWarnings("unchecked")
-            T j = (T) json;
-            map.addItem(query, j);
-          }
-        }
-      }
-      return map;
+    try {
+      cachedFindings.clear();
+      cachedEntities.clear();
+      cachedDocuments.clear();
+      cachedMetal.clear();
+      cachedSections.delete();
+      IndexSnapshot.delete(cachePath);
+    } catch (IOException e) {
+      System.out.println("IOException: " + e.getMessage());
     }
   }
 
-  private BetterMap<String, JSONObject> getCachedMetal() throws Exception {
-    FileReadHelper<JSONObject> frh = new FileReadHelper<JSONObject>();
-    return frh.getStuff(snippets);
+  /**
+   * @return the source recorded with cached findings: the ontologies they were searched in
+   */
+  private static String ontologySource() {
+    return EndpointLimiterFactory.ontologies + ONTOLOGY_SOURCES;
   }
 
-  private BetterMap<String, Document> getCachedDocuments() throws Exception {
-    FileReadHelper<Document> frh = new FileReadHelper<Document>();
-    return frh.getStuff(documents);
+  /**
+   * @return the key suffix of findings: empty for the default ontologies, so that entries cached
+   *         before the ontologies could be chosen are still found
+   */
+  private static String ontologyKey() {
+    if (ONTOLOGY_SOURCES.equals(DEFAULT_ONTOLOGY_SOURCES))
+      return "";
+    StringBuilder key = new StringBuilder(" #ontologies=");
+    for (OntologySource source : ONTOLOGY_SOURCES) {
+      if (key.charAt(key.length() - 1) != '=')
+        key.append(',');
+      key.append(source.name());
+    }
+    return key.toString();
   }
 
-  private BetterMap<String, Entity> getCachedEntities() throws Exception {
-    FileReadHelper<Entity> frh = new FileReadHelper<Entity>();
-    return frh.getStuff(entities);
+  /**
+   * Looks the results of query up under its canonical form (see {@link QueryCanonicalizer}), so
+   * that equivalent queries share one entry. The original query is what is sent to the service on
+   * a miss.
+   *
+   * @param fetcher returns null if the service call failed; the expired entry of query is served
+   *          then if there is one, otherwise an empty list that is not cached
+   */
+  private <T> List<T> lookup(ResultCache<T> cache, String query, String source,
+          Supplier<List<T>> fetcher) {
+    return lookup(cache, query, "", source, fetcher);
   }
 
-  private BetterMap<String, Finding> getCachedFindings() throws Exception {
-    FileReadHelper<Finding> frh = new FileReadHelper<Finding>();
-    return frh.getStuff(findings);
+  /**
+   * @param suffix appended to the key, for results that depend on settings as well as the query
+   */
+  private <T> List<T> lookup(ResultCache<T> cache, String query, String suffix, String source,
+          Supplier<List<T>> fetcher) {
+    return lookupResult(cache, query, suffix, source, () -> {
+      List<T> fetched = fetcher.get();
+      return fetched == null ? null : Fetched.complete(fetched);
+    });
   }
 
-  private BetterMap<String, Object> getFilesInDirectory(String subdir) throws Exception {
-    BetterMap<String, Object> json = new BetterMap<String, Object>();
-    Files.walk(Paths.get(cachePath + subdir)).forEach(filePath -> {
-      if (Files.isRegularFile(filePath)) {
-        Scanner scn;
-        try {
-          scn = new Scanner(filePath.toFile());
-          String query = scn.nextLine();
-          while (scn.hasNextLine()) {
-            String line = scn.nextLine();
-            line = new StupidHack().doHackyBullshit(line);
-            Object o = JsonReader.jsonToJava(line);
-            json.addItem(query, o);
-          }
-        } catch (Exception e) {
-          System.out.println("Exception: " + e.getMessage());
-        }
-      }
-    });
-    return json;
+  /**
+   * @param fetcher may return partial results, which are cached for PARTIAL_RESULTS_TTL only
+   */
+  private <T> List<T> lookupResult(ResultCache<T> cache, String query, String suffix,
+          String source, Supplier<Fetched<T>> fetcher) {
+    List<T> cached = cached(cache, query, suffix);
+    if (cached != null)
+      return cached;
+    List<T> results = cache.getOrFetchResult(QueryCanonicalizer.canonicalize(query) + suffix,
+            source, () -> OFFLINE ? null : fetcher.get());
+    // offline, null tells a query that is not cached
+    return results != null || OFFLINE ? results : new ArrayList<T>();
   }
-  
-  private class StupidHack {
-    public String doHackyBullshit(String line) {
-      if (APPLY_YEAR_CHANGE_HACK) {
-        String hack = "\"year\":\"2014\"";
-        String replaceHack = "\"year\":\"2012\"";
-        line = doReplaceBullshit(line, hack, replaceHack);
-        hack = "mesh/2014";
-        replaceHack = "mesh/2012";
-        return doReplaceBullshit(line, hack, replaceHack);
-      } else
-      return line;
-    }
-    private String doReplaceBullshit(String line, String hack, String replacement) {
-      if(line.contains(hack)) {
-        return line.replaceAll(hack, replacement);
-      } else {
-        return line;
-      }
-    }
+
+  private <T> List<T> cached(ResultCache<T> cache, String query) {
+    return cached(cache, query, "");
   }
-  
-  private PrintStream getWriter(String name, String subdir) {
-    //String hash = cleanString(name, "_").toLowerCase();
-    String hash = UUID.randomUUID().toString();
-    try {
-      PrintStream ps = new PrintStream(cachePath + subdir + hash + ".txt");
-      return ps;
-    } catch (IOException e) {
-      System.out.println("IOException: " + e.getMessage());
-    }
-    return null;
+
+  /**
+   * @return the cached results of query, or null. Entries cached before keys were canonicalized
+   *         are found under the query itself until the cache is compacted.
+   */
+  private <T> List<T> cached(ResultCache<T> cache, String query, String suffix) {
+    String key = QueryCanonicalizer.canonicalize(query) + suffix;
+    List<T> cached = cache.get(key);
+    if (cached == null && !key.equals(query + suffix))
+      cached = cache.get(query + suffix);
+    return cached;
   }
 
-  private void writeResultToFile(PrintStream ps, Object o) {
-    try {
-      String json = JsonWriter.objectToJson(o);
-      ps.print("\n" + json);
-    } catch (IOException e) {
-      // e.printStackTrace();
-    }
+  /**
+   * @return the key suffix of PubMed searches: empty for the first result page alone, the default,
+   *         so that entries cached before more pages could be retrieved are still found
+   */
+  private static String pubMedDepth() {
+    if (PUBMED_PAGES <= 1)
+      return "";
+    return " #pages=" + PUBMED_PAGES + (PUBMED_CANDIDATES > 0 ? ",candidates=" + PUBMED_CANDIDATES
+            : "");
   }
 
   /**
@@ -201,23 +310,8 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
    */
   @Override
   public List<Finding> getFindingsFromQuery(String query) {
-    if (!cachedFindings.containsKey(query)) {
-      PrintStream ps = getWriter(query, findings);
-      ps.print(query);
-      List<Finding> findings = super.getFindingsFromQuery(query);
-      if (findings.isEmpty()) {
-        cachedFindings.addItem(query, null);
-        writeResultToFile(ps, null);
-      } else {
-        for (Finding f : findings) {
-          cachedFindings.addItem(query, f);
-          writeResultToFile(ps, f);
-        }
-      }
-      ps.close();
-      return findings;
-    } else
-      return cachedFindings.get(query);
+    return lookupResult(cachedFindings, query, ontologyKey(), ontologySource(),
+            () -> fetchFindings(query));
   }
 
   /**
@@ -226,23 +320,8 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
    */
   @Override
   public List<Entity> getEntitiesFromQuery(String query) {
-    if (!cachedEntities.containsKey(query)) {
-      PrintStream ps = getWriter(query, entities);
-      ps.print(query);
-      List<Entity> entities = super.getEntitiesFromQuery(query);
-      if (entities.isEmpty()) {
-        cachedFindings.addItem(query, null);
-        writeResultToFile(ps, null);
-      } else {
-        for (Entity e : entities) {
-          cachedEntities.addItem(query, e);
-          writeResultToFile(ps, e);
-        }
-      }
-      ps.close();
-      return entities;
-    } else
-      return cachedEntities.get(query);
+    return lookup(cachedEntities, query, EndpointLimiterFactory.linkedLifeData,
+            () -> fetchEntities(query));
   }
 
   /**
@@ -251,23 +330,31 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
    */
   @Override
   public List<Document> getPubMedDocumentsFromQuery(String query) {
-    if (!cachedDocuments.containsKey(query)) {
-      PrintStream ps = getWriter(query, documents);
-      ps.print(query);
-      List<Document> documents = super.getPubMedDocumentsFromQuery(query);
-      if (documents.isEmpty()) {
-        cachedFindings.addItem(query, null);
-        writeResultToFile(ps, null);
-      } else {
-        for (Document d : documents) {
-          cachedDocuments.addItem(query, d);
-          writeResultToFile(ps, d);
-        }
-      }
-      ps.close();
-      return documents;
-    } else
-      return cachedDocuments.get(query);
+    return lookupResult(cachedDocuments, query, pubMedDepth(), EndpointLimiterFactory.citations,
+            () -> fetchPubMedDocuments(query, page -> {
+            }));
+  }
+
+  /**
+   * Hands a cached result to consumer in one piece. On a miss the pages are passed on as they
+   * arrive and the whole result is cached once the search is complete, for PARTIAL_RESULTS_TTL
+   * only if one of its pages failed.
+   */
+  @Override
+  public int streamPubMedDocumentsFromQuery(String query, Consumer<List<Document>> consumer) {
+    AtomicBoolean streamed = new AtomicBoolean();
+    List<Document> docs = lookupResult(cachedDocuments, query, pubMedDepth(),
+            EndpointLimiterFactory.citations, () -> fetchPubMedDocuments(query, page -> {
+              streamed.set(true);
+              consumer.accept(page);
+            }));
+    if (docs == null)
+      return 0;
+    // a hit, a miss coalesced with the same search in another thread, or the expired entry
+    // served after a failed search
+    if (!streamed.get())
+      consumer.accept(docs);
+    return docs.size();
   }
 
   /**
@@ -276,17 +363,120 @@ public class CachedWebAPIServiceProxy extends WebAPIServiceProxy {
    */
   @Override
   public JSONObject getDocFullTextJSon(String pmid) {
-    if (!cachedMetal.containsKey(pmid)) {
-      PrintStream ps = getWriter(pmid, snippets);
-      ps.print(pmid);
-      JSONObject json = super.getDocFullTextJSon(pmid);
-      cachedMetal.addItem(pmid, json);
-      writeResultToFile(ps, json);
-      ps.close();
-      return json;
-    } else
-      // only ever one result...
-      return cachedMetal.get(pmid).get(0);
+    // a failed fetch returns null and is not cached, so it is tried again next time
+    List<JSONObject> cached = cachedMetal.getOrFetch(pmid, MetalWebService.METAL_API_BASE, () -> {
+      JSONObject json = OFFLINE ? null : super.getDocFullTextJSon(pmid);
+      return json == null ? null : Collections.singletonList(json);
+    });
+    // only ever one result...
+    return cached == null || cached.isEmpty() ? null : cached.get(0);
+  }
+
+  /**
+   * Serves the sections from the section store. On a miss they are taken from the full text (and
+   * so fetched only if that is not cached either) and added to the store. They are kept until the
+   * cache is cleared, as the full text of an article does not change.
+   */
+  @Override
+  public List<CharSequence> getDocFullTextSections(String pmid) {
+    try {
+      List<CharSequence> cached = cachedSections.get(pmid);
+      if (cached != null)
+        return cached;
+      List<CharSequence> sections = super.getDocFullTextSections(pmid);
+      if (sections == null)
+        return null;
+      cachedSections.put(pmid, sections);
+      return cachedSections.get(pmid);
+    } catch (IOException e) {
+      System.out.println("Exception: " + e.getMessage());
+      return super.getDocFullTextSections(pmid);
+    }
+  }
+
+  /**
+   * Streams the sections from the section store, or from the full text cache if only that has
+   * them. Otherwise they are passed on as they arrive from the service and stored once the full
+   * text is complete; until then they are held as UTF-8 bytes only.
+   */
+  @Override
+  public boolean streamDocFullTextSections(String pmid, MetalWebService.SectionListener listener) {
+    List<CharSequence> sections = null;
+    try {
+      sections = cachedSections.get(pmid);
+    } catch (IOException e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+    if (sections == null && cachedMetal.containsKey(pmid))
+      sections = getDocFullTextSections(pmid);
+    if (sections != null) {
+      for (int i = 0; i < sections.size(); i++) {
+        listener.section(i, sections.get(i));
+      }
+      return true;
+    }
+    if (OFFLINE)
+      return false;
+    SectionStore.Sections received = new SectionStore.Sections();
+    boolean complete = super.streamDocFullTextSections(pmid, (i, text) -> {
+      // sections that are not text are skipped by the parser
+      while (received.size() < i)
+        received.add("");
+      received.add(text);
+      listener.section(i, text);
+    });
+    if (complete) {
+      try {
+        cachedSections.put(pmid, received);
+      } catch (IOException e) {
+        System.out.println("Exception: " + e.getMessage());
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Completes immediately on a cache hit; a miss runs on the I/O executor.
+   */
+  @Override
+  public CompletableFuture<List<Finding>> getFindingsFromQueryAsync(String query) {
+    List<Finding> cached = cached(cachedFindings, query, ontologyKey());
+    if (cached != null)
+      return CompletableFuture.completedFuture(cached);
+    return super.getFindingsFromQueryAsync(query);
+  }
+
+  /**
+   * Completes immediately on a cache hit; a miss runs on the I/O executor.
+   */
+  @Override
+  public CompletableFuture<List<Entity>> getEntitiesFromQueryAsync(String query) {
+    List<Entity> cached = cached(cachedEntities, query);
+    if (cached != null)
+      return CompletableFuture.completedFuture(cached);
+    return super.getEntitiesFromQueryAsync(query);
+  }
+
+  /**
+   * Completes immediately on a cache hit; a miss runs on the I/O executor.
+   */
+  @Override
+  public CompletableFuture<List<Document>> getPubMedDocumentsFromQueryAsync(String query) {
+    List<Document> cached = cached(cachedDocuments, query, pubMedDepth());
+    if (cached != null)
+      return CompletableFuture.completedFuture(cached);
+    return super.getPubMedDocumentsFromQueryAsync(query);
+  }
+
+  /**
+   * Completes immediately on a cache hit; a miss runs on the I/O executor.
+   */
+  @Override
+  public CompletableFuture<JSONObject> getDocFullTextJSonAsync(String pmid) {
+    List<JSONObject> cached = cachedMetal.get(pmid);
+    if (cached != null)
+      return CompletableFuture.completedFuture(cached.isEmpty() ? null : cached.get(0));
+    return super.getDocFullTextJSonAsync(pmid);
   }
 
 }
@@ -0,0 +1,67 @@
+package util.webservice;
+
+/**
+ * Circuit breaker for a remote service. After a number of consecutive failures the circuit opens
+ * and calls are refused without touching the network. Once the open period has passed, a single
+ * trial call is let through: if it succeeds the circuit closes again, otherwise it stays open for
+ * another period.
+ */
+public class CircuitBreaker {
+
+  private final String name;
+
+  private final int failureThreshold;
+
+  private final long openMillis;
+
+  private int consecutiveFailures = 0;
+
+  private long openUntil = 0;
+
+  private boolean trialRunning = false;
+
+  /**
+   * @param name service name used in log messages
+   * @param failureThreshold consecutive failures that open the circuit
+   * @param openMillis how long the circuit stays open before a trial call
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * @return true if a call may be made now
+   */
+  public synchronized boolean allowRequest() {
+    if (consecutiveFailures < failureThreshold)
+      return true;
+    if (trialRunning || System.currentTimeMillis() < openUntil)
+      return false;
+    trialRunning = true;
+    return true;
+  }
+
+  public synchronized void recordSuccess() {
+    if (consecutiveFailures >= failureThreshold)
+      System.out.println("Circuit for " + name + " closed");
+    consecutiveFailures = 0;
+    trialRunning = false;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (consecutiveFailures >= failureThreshold) {
+      if (!trialRunning)
+        System.out.println("Circuit for " + name + " opened after " + consecutiveFailures
+                + " failures");
+      openUntil = System.currentTimeMillis() + openMillis;
+      trialRunning = false;
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return consecutiveFailures >= failureThreshold;
+  }
+}
@@ -0,0 +1,110 @@
+package util.webservice;
+
+import java.util.concurrent.Callable;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the calls made to one endpoint of a remote service. A token bucket caps the request rate,
+ * and an AIMD limit caps the number of calls in flight: every successful call raises the limit by
+ * about one per round trip, while a failed call or a latency spike halves it (at most once per
+ * round trip). The limiter thereby settles just below the point where the service starts to
+ * throttle, instead of oscillating between idle and throttled.
+ */
+public class EndpointLimiter {
+
+  /**
+   * A call this many times slower than the average counts as a latency spike
+   */
+  public static double LATENCY_SPIKE_FACTOR = 3;
+
+  private final String name;
+
+  private final RateLimiter tokens;
+
+  private final int minConcurrency;
+
+  private final int maxConcurrency;
+
+  private double limit;
+
+  private int inFlight = 0;
+
+  /**
+   * Exponentially weighted average latency of successful calls in milliseconds
+   */
+  private double averageLatency = 0;
+
+  private long lastDecrease = 0;
+
+  private long calls = 0;
+
+  private long decreases = 0;
+
+  /**
+   * @param name endpoint name used in statistics
+   * @param permitsPerSecond sustained request rate
+   * @param initialConcurrency calls in flight allowed at first
+   * @param maxConcurrency upper bound the limit probes up to
+   */
+  public EndpointLimiter(String name, double permitsPerSecond, int initialConcurrency,
+          int maxConcurrency) {
+    this.name = name;
+    this.tokens = RateLimiter.create(permitsPerSecond);
+    this.minConcurrency = 1;
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.limit = Math.max(1, Math.min(initialConcurrency, this.maxConcurrency));
+  }
+
+  /**
+   * Runs task once a token and a concurrency slot are available
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    acquireSlot();
+    tokens.acquire();
+    long start = System.currentTimeMillis();
+    boolean ok = false;
+    try {
+      T result = task.call();
+      ok = true;
+      return result;
+    } finally {
+      release(ok, System.currentTimeMillis() - start);
+    }
+  }
+
+  private synchronized void acquireSlot() throws InterruptedException {
+    while (inFlight >= (int) limit)
+      wait();
+    inFlight++;
+    calls++;
+  }
+
+  private synchronized void release(boolean ok, long latency) {
+    inFlight--;
+    boolean spike = ok && averageLatency > 0 && latency > LATENCY_SPIKE_FACTOR * averageLatency;
+    long now = System.currentTimeMillis();
+    if (!ok || spike) {
+      // the calls in flight during a slowdown all report it; back off only once per round trip
+      if (now - lastDecrease > Math.max(averageLatency, latency)) {
+        limit = Math.max(minConcurrency, limit / 2);
+        lastDecrease = now;
+        decreases++;
+      }
+    } else {
+      limit = Math.min(maxConcurrency, limit + 1 / limit);
+    }
+    if (ok)
+      averageLatency = averageLatency == 0 ? latency : 0.9 * averageLatency + 0.1 * latency;
+    notifyAll();
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized String getStatistics() {
+    return String.format("%s: %d calls, concurrency limit %d, %d back-offs, avg latency %.0f ms",
+            name, calls, (int) limit, decreases, averageLatency);
+  }
+}
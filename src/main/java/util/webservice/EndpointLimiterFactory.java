@@ -0,0 +1,77 @@
+package util.webservice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide limiters for the endpoints of the GoPubMed service, shared by all proxies and CPE
+ * threads.
+ */
+public class EndpointLimiterFactory {
+
+  public static final String citations = "citations";
+
+  public static final String ontologies = "ontologies";
+
+  public static final String linkedLifeData = "linkedLifeData";
+
+  public static double CITATIONS_PER_SECOND = 5;
+
+  /**
+   * Every concept search calls each ontology source once
+   */
+  public static double ONTOLOGY_CALLS_PER_SECOND = 20;
+
+  public static double LINKED_LIFE_DATA_PER_SECOND = 5;
+
+  public static int INITIAL_CONCURRENCY = 2;
+
+  public static int MAX_CONCURRENCY = 8;
+
+  private static Map<String, EndpointLimiter> limiters = new HashMap<String, EndpointLimiter>();
+
+  public static synchronized EndpointLimiter getInstance(String endpoint) {
+    EndpointLimiter limiter = limiters.get(endpoint);
+    if (limiter == null) {
+      int initial = initialConcurrency(endpoint);
+      limiter = new EndpointLimiter(endpoint, permitsPerSecond(endpoint), initial,
+              Math.max(initial, MAX_CONCURRENCY));
+      limiters.put(endpoint, limiter);
+    }
+    return limiter;
+  }
+
+  private static double permitsPerSecond(String endpoint) {
+    switch (endpoint) {
+      case citations:
+        return CITATIONS_PER_SECOND;
+      case ontologies:
+        return ONTOLOGY_CALLS_PER_SECOND;
+      case linkedLifeData:
+        return LINKED_LIFE_DATA_PER_SECOND;
+      default:
+        throw new IllegalArgumentException("Unknown endpoint: " + endpoint);
+    }
+  }
+
+  /**
+   * A concept search calls all ontology sources at once and waits for them only until its
+   * deadline, so their limiter starts with room for every source
+   */
+  private static int initialConcurrency(String endpoint) {
+    if (endpoint.equals(ontologies))
+      return Math.max(INITIAL_CONCURRENCY, WebAPIServiceProxy.ONTOLOGY_SOURCES.size());
+    return INITIAL_CONCURRENCY;
+  }
+
+  /**
+   * @return the statistics of every limiter created so far
+   */
+  public static synchronized String getStatistics() {
+    StringBuilder sb = new StringBuilder();
+    for (EndpointLimiter limiter : limiters.values()) {
+      sb.append(limiter.getStatistics()).append('\n');
+    }
+    return sb.toString();
+  }
+}
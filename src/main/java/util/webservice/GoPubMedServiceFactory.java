@@ -8,6 +8,11 @@ import edu.cmu.lti.oaqa.bio.bioasq.services.GoPubMedService;
 public class GoPubMedServiceFactory {
   
   private static GoPubMedService service = null;
+
+  /**
+   * Service URLs; point them at a StandInServer to run without the real services
+   */
+  public static String PROPERTIES_FILE = "project.properties";
   
   public static GoPubMedService getInstance() {
     return getGoPubMedService();
@@ -16,7 +21,7 @@ public class GoPubMedServiceFactory {
   private static synchronized GoPubMedService getGoPubMedService() {
     if(GoPubMedServiceFactory.service == null) {
       try {
-        service = new GoPubMedService("project.properties");
+        service = new GoPubMedService(PROPERTIES_FILE);
       } catch (ConfigurationException e) {
         e.printStackTrace();
         throw new UIMA_IllegalStateException();
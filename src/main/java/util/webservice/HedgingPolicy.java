@@ -0,0 +1,162 @@
+package util.webservice;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged requests for a remote call with a long latency tail. A call that has not returned after
+ * the given percentile of recently observed latencies is issued a second time, and whichever copy
+ * succeeds first is used. Hedges are capped at a fraction of all calls, so a service that is slow
+ * across the board does not see its load doubled.
+ */
+public class HedgingPolicy {
+
+  private final String name;
+
+  private final ExecutorService executor;
+
+  private final double percentile;
+
+  private final double maxHedgeRate;
+
+  private final int minSamples;
+
+  /**
+   * Latencies of the most recent calls in milliseconds, used as a ring buffer
+   */
+  private final long[] latencies;
+
+  private int samples = 0;
+
+  private final AtomicLong calls = new AtomicLong();
+
+  private final AtomicLong hedges = new AtomicLong();
+
+  private final AtomicInteger hedgeWins = new AtomicInteger();
+
+  /**
+   * @param name call name used in statistics
+   * @param executor runs both copies of a call
+   * @param percentile latency percentile (0-100) after which a call is hedged
+   * @param maxHedgeRate largest fraction of calls that may be hedged
+   * @param window number of recent latencies the percentile is computed over
+   * @param minSamples latencies to observe before the first hedge
+   */
+  public HedgingPolicy(String name, ExecutorService executor, double percentile,
+          double maxHedgeRate, int window, int minSamples) {
+    this.name = name;
+    this.executor = executor;
+    this.percentile = percentile;
+    this.maxHedgeRate = maxHedgeRate;
+    this.latencies = new long[window];
+    this.minSamples = Math.min(minSamples, window);
+  }
+
+  /**
+   * Runs task, hedging it if it is slow
+   *
+   * @return the result of whichever copy of task succeeded first
+   * @throws Exception the exception of the task if every copy failed
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    calls.incrementAndGet();
+    CompletableFuture<T> primary = submit(task);
+    long delay = hedgeDelay();
+    if (delay < 0)
+      return await(primary);
+    try {
+      return primary.get(delay, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // slow: fall through and hedge
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    }
+    if (!reserveHedge())
+      return await(primary);
+    CompletableFuture<T> hedge = submit(task);
+    CompletableFuture<T> first = new CompletableFuture<T>();
+    AtomicInteger failed = new AtomicInteger();
+    for (CompletableFuture<T> copy : Arrays.asList(primary, hedge)) {
+      copy.whenComplete((result, error) -> {
+        if (error == null) {
+          if (first.complete(result) && copy == hedge)
+            hedgeWins.incrementAndGet();
+        } else if (failed.incrementAndGet() == 2) {
+          first.completeExceptionally(error);
+        }
+      });
+    }
+    return await(first);
+  }
+
+  private <T> CompletableFuture<T> submit(Callable<T> task) {
+    return CompletableFuture.supplyAsync(() -> {
+      long start = System.currentTimeMillis();
+      try {
+        T result = task.call();
+        record(System.currentTimeMillis() - start);
+        return result;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  private <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  private Exception unwrap(Throwable t) {
+    if (t instanceof CompletionException && t.getCause() != null)
+      t = t.getCause();
+    if (t instanceof Exception)
+      return (Exception) t;
+    throw (Error) t;
+  }
+
+  private boolean reserveHedge() {
+    long n = hedges.incrementAndGet();
+    if (n > maxHedgeRate * calls.get()) {
+      hedges.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private synchronized void record(long millis) {
+    latencies[samples % latencies.length] = millis;
+    samples++;
+  }
+
+  /**
+   * @return milliseconds to wait before hedging, or -1 if there are too few observations yet
+   */
+  synchronized long hedgeDelay() {
+    int n = Math.min(samples, latencies.length);
+    if (n < minSamples)
+      return -1;
+    long[] sorted = Arrays.copyOf(latencies, n);
+    Arrays.sort(sorted);
+    int i = (int) Math.ceil(percentile / 100.0 * n) - 1;
+    return sorted[Math.max(0, Math.min(n - 1, i))];
+  }
+
+  public String getStatistics() {
+    return String.format("%s: %d calls, %d hedged, %d won by the hedge, hedge delay %d ms", name,
+            calls.get(), hedges.get(), hedgeWins.get(), hedgeDelay());
+  }
+}
@@ -0,0 +1,32 @@
+package util.webservice;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Shared, connection-pooled HTTP client. Connections are kept alive and reused across requests,
+ * and responses are requested and transparently decoded with gzip/deflate compression.
+ */
+public class HttpClientFactory {
+
+  /**
+   * Pooled connections per host; bounds the number of concurrent requests to one service
+   */
+  public static int MAX_CONNECTIONS_PER_ROUTE = 8;
+
+  public static int MAX_CONNECTIONS_TOTAL = 32;
+
+  private static CloseableHttpClient client = null;
+
+  public static synchronized CloseableHttpClient getInstance() {
+    if (client == null) {
+      PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+      pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+      pool.setMaxTotal(Math.max(MAX_CONNECTIONS_TOTAL, MAX_CONNECTIONS_PER_ROUTE));
+      // the builder adds Accept-Encoding: gzip,deflate and decodes compressed responses
+      client = HttpClients.custom().setConnectionManager(pool).build();
+    }
+    return client;
+  }
+}
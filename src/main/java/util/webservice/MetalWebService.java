@@ -4,23 +4,71 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.cedarsoftware.util.io.JsonWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Di Xu
  */
 public class MetalWebService {
 
-  private final String METAL_API_BASE = "http://metal.lti.cs.cmu.edu:30002/pmc/";
+  /**
+   * Base URL of the full text service: metal.service of the service properties if set
+   */
+  public static String METAL_API_BASE = readApiBase("http://metal.lti.cs.cmu.edu:30002/pmc/");
   //private final String METAL_API_BASE = "http://islpc19.is.cs.cmu.edu:30001/pmc/";
   
   public boolean DISABLE_METAL_WEB_SERVICE = true;
+
+  public static int CONNECT_TIMEOUT_MS = 5000;
+
+  public static int READ_TIMEOUT_MS = 30000;
+
+  /**
+   * Retries of a failed fetch before giving up on it
+   */
+  public static int MAX_RETRIES = 4;
+
+  public static long BACKOFF_BASE_MS = 500;
+
+  public static long BACKOFF_MAX_MS = 10000;
+
+  /**
+   * Shared by all instances, so that every CPE thread fails fast while the service is down
+   */
+  private static final CircuitBreaker circuit = new CircuitBreaker("Metal", 5, 30000);
+
+  private static final AtomicLong requests = new AtomicLong();
+
+  private static final AtomicLong retries = new AtomicLong();
+
+  private static final AtomicLong failures = new AtomicLong();
+
+  private static final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Receives the sections of a full text one by one, as they are parsed off the wire
+   */
+  public interface SectionListener {
+    public void section(int index, CharSequence text);
+  }
   
   
   public JSONObject getDocFullTextJSon(String pmid) {
@@ -29,7 +77,72 @@ public class MetalWebService {
     else
       return new JSONObject("{pmid:"+pmid+"}");
   }
+
+  /**
+   * Streaming version of {@link #getDocFullTextJSon(String)}: the response is parsed as it
+   * arrives and every section is handed to listener as soon as it has been read, so only one
+   * section is held in memory at a time. A fetch that breaks off is retried like any other;
+   * sections delivered before are not delivered again.
+   *
+   * @return true if all sections were delivered, false if there is no full text or it could not
+   *         be fetched
+   */
+  public boolean streamDocFullText(String pmid, SectionListener listener) {
+    if (DISABLE_METAL_WEB_SERVICE)
+      return false;
+    URL url = buildUrl(pmid);
+    if (url == null)
+      return false;
+    requests.incrementAndGet();
+    int[] delivered = { 0 };
+    SectionListener once = (i, text) -> {
+      if (i >= delivered[0]) {
+        listener.section(i, text);
+        delivered[0] = i + 1;
+      }
+    };
+    for (int attempt = 0;; attempt++) {
+      if (!circuit.allowRequest()) {
+        rejected.incrementAndGet();
+        return false;
+      }
+      try {
+        boolean complete = stream(url, once);
+        circuit.recordSuccess();
+        return complete;
+      } catch (MalformedJsonException e) {
+        // the service answered, but not with a full text
+        circuit.recordSuccess();
+        System.out.println("Exception: " + e.getMessage() + " (full text of " + pmid + ")");
+        return false;
+      } catch (RuntimeException e) {
+        // also ends a trial call of the circuit, which would otherwise stay open
+        circuit.recordFailure();
+        throw e;
+      } catch (IOException e) {
+        circuit.recordFailure();
+        if (attempt >= MAX_RETRIES) {
+          failures.incrementAndGet();
+          System.out.println("Exception: " + e.getMessage() + " (giving up on " + url + ")");
+          return false;
+        }
+        retries.incrementAndGet();
+        if (!backoff(attempt))
+          return false;
+      }
+    }
+  }
   
+  private static String readApiBase(String defaultBase) {
+    Properties properties = new Properties();
+    try (FileInputStream in = new FileInputStream(GoPubMedServiceFactory.PROPERTIES_FILE)) {
+      properties.load(in);
+    } catch (IOException e) {
+      return defaultBase;
+    }
+    return properties.getProperty("metal.service", defaultBase).trim();
+  }
+
   private URL buildUrl(String pmid) {
     StringBuilder sb = new StringBuilder(METAL_API_BASE);
     sb.append(pmid);
@@ -47,51 +160,172 @@ public class MetalWebService {
   }
 
 
+  /**
+   * Fetches and parses the JSON at url, retrying failed attempts with capped exponential backoff
+   * and full jitter.
+   *
+   * @return the parsed object, or null if the service could not be reached, the circuit is open
+   *         or the response is not JSON
+   */
   private JSONObject get_JSON_Obj_by_URL(URL url) {
-    HttpURLConnection conn = null;
-    StringBuilder jsonResults = new StringBuilder();
-    try {
-      conn = (HttpURLConnection) url.openConnection();
-      InputStreamReader in = new InputStreamReader(conn.getInputStream());
-
-      int read;
-      char[] buff = new char[10240];
-      while ((read = in.read(buff)) != -1) {
-        jsonResults.append(buff, 0, read);
-      }
-    } catch (MalformedURLException e) {
-      System.err.println("Error processing Places API URL");
+    if (url == null)
       return null;
-    } catch (IOException e) {
+    requests.incrementAndGet();
+    for (int attempt = 0;; attempt++) {
+      if (!circuit.allowRequest()) {
+        rejected.incrementAndGet();
+        return null;
+      }
+      String jsonResults;
       try {
-        Thread.sleep(3000);
-      } catch (InterruptedException e1) {
-        // TODO Auto-generated catch block
+        jsonResults = fetch(url);
+        circuit.recordSuccess();
+        if (jsonResults == null)
+          return null;
+      } catch (RuntimeException e) {
+        circuit.recordFailure();
+        throw e;
+      } catch (IOException e) {
+        circuit.recordFailure();
+        if (attempt >= MAX_RETRIES) {
+          failures.incrementAndGet();
+          System.out.println("Exception: " + e.getMessage() + " (giving up on " + url + ")");
+          return null;
+        }
+        retries.incrementAndGet();
+        if (!backoff(attempt))
+          return null;
+        continue;
       }
-      
-      return get_JSON_Obj_by_URL(url);
-    } finally {
-      if (conn != null) {
-        conn.disconnect();
+
+      // Create a JSON object hierarchy from the results
+      JSONObject jsonObj = null;
+      try {
+        jsonObj = new JSONObject(jsonResults);
+      } catch (JSONException e) {
       }
+      return jsonObj;
     }
+  }
 
-    //System.out.println(jsonResults.toString());
-
-    // Create a JSON object hierarchy from the results
-    JSONObject jsonObj = null;
+  /**
+   * Sleeps for a capped exponential backoff with full jitter before retry attempt + 1
+   *
+   * @return false if the thread was interrupted while sleeping
+   */
+  private static boolean backoff(int attempt) {
+    long cap = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt, 20));
     try {
-      jsonObj = new JSONObject(jsonResults.toString());
-    } catch (JSONException e) {
+      Thread.sleep(1 + ThreadLocalRandom.current().nextLong(cap));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static HttpGet newGet(URL url) {
+    HttpGet get = new HttpGet(url.toString());
+    get.setConfig(RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT_MS)
+            .setConnectionRequestTimeout(CONNECT_TIMEOUT_MS).setSocketTimeout(READ_TIMEOUT_MS)
+            .build());
+    return get;
+  }
+
+  /**
+   * @return the response body, or null if the service answered with a client error that is not
+   *         worth retrying
+   * @throws IOException if the request failed or the service answered with a server error
+   */
+  private String fetch(URL url) throws IOException {
+    try (CloseableHttpResponse response = HttpClientFactory.getInstance().execute(newGet(url))) {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      // reading the entity to its end hands the connection back to the pool
+      String body = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+      if (status >= 500 || status == 429)
+        throw new IOException("HTTP " + status + " from " + url);
+      if (status >= 400)
+        return null;
+      return body;
     }
-    return jsonObj;
+  }
+
+  /**
+   * Reads the sections array of the response with a pull parser and skips everything else
+   *
+   * @return true if the response had a sections array, false for a client error or no sections
+   * @throws MalformedJsonException if the response is not a full text
+   * @throws IOException if the request failed, the service answered with a server error or the
+   *           response broke off
+   */
+  private boolean stream(URL url, SectionListener listener) throws IOException {
+    try (CloseableHttpResponse response = HttpClientFactory.getInstance().execute(newGet(url))) {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (status >= 500 || status == 429) {
+        EntityUtils.consume(entity);
+        throw new IOException("HTTP " + status + " from " + url);
+      }
+      if (status >= 400 || entity == null) {
+        EntityUtils.consume(entity);
+        return false;
+      }
+      boolean complete = false;
+      boolean listening = false;
+      JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(),
+              StandardCharsets.UTF_8));
+      try {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (!reader.nextName().equals("sections")) {
+            reader.skipValue();
+            continue;
+          }
+          reader.beginArray();
+          for (int i = 0; reader.hasNext(); i++) {
+            if (reader.peek() == JsonToken.STRING) {
+              String text = reader.nextString();
+              listening = true;
+              listener.section(i, text);
+              listening = false;
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endArray();
+          complete = true;
+        }
+        reader.endObject();
+      } catch (IllegalStateException e) {
+        // the reader throws it when the response is not shaped like a full text
+        if (listening)
+          throw e;
+        throw new MalformedJsonException(e.getMessage());
+      }
+      // reading the entity to its end hands the connection back to the pool
+      EntityUtils.consume(entity);
+      return complete;
+    }
+  }
+
+  /**
+   * @return counts of requests, retries and failures of all full text fetches so far
+   */
+  public static String getStatistics() {
+    return String.format("Metal: %d requests, %d retries, %d failed, %d rejected by open circuit",
+            requests.get(), retries.get(), failures.get(), rejected.get());
   }
 
   public static void main(String[] args) {
     MetalWebService metal = new MetalWebService();
     metal.DISABLE_METAL_WEB_SERVICE = false;
     JSONObject docFull = metal.getDocFullTextJSon("23193287");
-    
+    if (docFull == null) {
+      System.out.println(getStatistics());
+      return;
+    }
+
     System.out.println(docFull.get("pmid"));
     System.out.println(docFull.get("title"));
     
@@ -0,0 +1,97 @@
+package util.webservice;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.GoPubMedService;
+import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse;
+
+/**
+ * The ontologies of the GoPubMed service that concepts are searched in
+ */
+public enum OntologySource {
+  DISEASE("Disease ontology", "diseaseontology", "disease-ontology.org") {
+    @Override
+    public OntologyServiceResponse.Result find(GoPubMedService service, String query)
+            throws IOException {
+      return service.findDiseaseOntologyEntitiesPaged(query, 0);
+    }
+  },
+  GENE("Gene ontology", "geneontology", "geneontology.org") {
+    @Override
+    public OntologyServiceResponse.Result find(GoPubMedService service, String query)
+            throws IOException {
+      return service.findGeneOntologyEntitiesPaged(query, 0);
+    }
+  },
+  JOCHEM("Jochem", "jochem", "biosemantics.org/jochem") {
+    @Override
+    public OntologyServiceResponse.Result find(GoPubMedService service, String query)
+            throws IOException {
+      return service.findJochemEntitiesPaged(query, 0);
+    }
+  },
+  MESH("MeSH", "mesh", "nlm.nih.gov") {
+    @Override
+    public OntologyServiceResponse.Result find(GoPubMedService service, String query)
+            throws IOException {
+      return service.findMeshEntitiesPaged(query, 0);
+    }
+  },
+  UNIPROT("UniProt", "uniprot", "uniprot.org") {
+    @Override
+    public OntologyServiceResponse.Result find(GoPubMedService service, String query)
+            throws IOException {
+      return service.findUniprotEntitiesPaged(query, 0);
+    }
+  };
+
+  private final String label;
+
+  private final String servicePath;
+
+  private final String conceptUriPart;
+
+  /**
+   * @param label
+   * @param servicePath name of the service in its URL, e.g. .../gopubmed/mesh/
+   * @param conceptUriPart part of the URI of every concept this ontology returns
+   */
+  private OntologySource(String label, String servicePath, String conceptUriPart) {
+    this.label = label;
+    this.servicePath = servicePath;
+    this.conceptUriPart = conceptUriPart;
+  }
+
+  /**
+   * Searches the first page of this ontology
+   */
+  public abstract OntologyServiceResponse.Result find(GoPubMedService service, String query)
+          throws IOException;
+
+  public String getLabel() {
+    return label;
+  }
+
+  public String getServicePath() {
+    return servicePath;
+  }
+
+  /**
+   * @return true if the finding comes from this ontology
+   */
+  public boolean isSourceOf(OntologyServiceResponse.Finding finding) {
+    return finding.getConcept() != null && finding.getConcept().getUri() != null
+            && finding.getConcept().getUri().contains(conceptUriPart);
+  }
+
+  /**
+   * @return the ontology served under servicePath, or null
+   */
+  public static OntologySource forServicePath(String servicePath) {
+    for (OntologySource source : values()) {
+      if (source.servicePath.equals(servicePath))
+        return source;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,197 @@
+package util.webservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Canonical form of a query in the boolean syntax of the GoPubMed services, used as cache key so
+ * that equivalent queries share one cache entry. Whitespace is collapsed, terms are lower-cased
+ * (the operators AND, OR and NOT are upper-case only), and the operands of AND, of OR and of
+ * juxtaposed boolean clauses are sorted, e.g. "(c AND d) OR (b AND a)" becomes
+ * "(a AND b) OR (c AND d)" and "c AND d a AND b" becomes "a AND b c AND d". Plain juxtaposed terms
+ * keep their order, as does a level of the query that contains NOT or mixes AND with OR, within a
+ * clause or across juxtaposed clauses, and juxtaposed OR clauses ("c OR d a OR b" is evaluated left
+ * to right as "((c OR d) AND a) OR b"); a query that
+ * does not parse is only normalized in whitespace and case.
+ */
+public class QueryCanonicalizer {
+
+  private static final String AND = "AND";
+
+  private static final String OR = "OR";
+
+  private static final String NOT = "NOT";
+
+  private final List<String> tokens;
+
+  private int pos = 0;
+
+  private QueryCanonicalizer(List<String> tokens) {
+    this.tokens = tokens;
+  }
+
+  /**
+   * @param query
+   * @return the canonical form of query
+   */
+  public static String canonicalize(String query) {
+    if (query == null)
+      return null;
+    List<String> tokens = tokenize(query);
+    QueryCanonicalizer parser = new QueryCanonicalizer(tokens);
+    try {
+      String canonical = parser.level();
+      if (parser.pos == tokens.size())
+        return canonical;
+    } catch (IllegalArgumentException e) {
+      // malformed, fall through
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String t : tokens) {
+      if (sb.length() > 0)
+        sb.append(' ');
+      sb.append(isOperator(t) ? t : t.toLowerCase(Locale.ROOT));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parses the operands and operators up to the next unmatched ')' or the end
+   *
+   * @return the canonical form of the level
+   */
+  private String level() {
+    // clauses are juxtaposed; the operands of a clause are joined by explicit operators
+    List<List<String>> operands = new ArrayList<List<String>>();
+    List<List<String>> operators = new ArrayList<List<String>>();
+    // operands and operators of each clause in the order they came in
+    List<List<String>> sequences = new ArrayList<List<String>>();
+    boolean hasNot = false;
+    boolean expectOperand = true;
+    while (pos < tokens.size() && !tokens.get(pos).equals(")")) {
+      String t = tokens.get(pos);
+      if (isOperator(t)) {
+        if (t.equals(NOT))
+          hasNot = true;
+        if (operands.isEmpty()) {
+          // a leading NOT
+          if (!t.equals(NOT))
+            throw new IllegalArgumentException(t);
+          operands.add(new ArrayList<String>());
+          operators.add(new ArrayList<String>());
+          sequences.add(new ArrayList<String>());
+        } else if (expectOperand && !t.equals(NOT)) {
+          throw new IllegalArgumentException(t);
+        }
+        operators.get(operators.size() - 1).add(t);
+        sequences.get(sequences.size() - 1).add(t);
+        expectOperand = true;
+        pos++;
+        continue;
+      }
+      String operand = operand();
+      if (!expectOperand || operands.isEmpty()) {
+        operands.add(new ArrayList<String>());
+        operators.add(new ArrayList<String>());
+        sequences.add(new ArrayList<String>());
+      }
+      operands.get(operands.size() - 1).add(operand);
+      sequences.get(sequences.size() - 1).add(operand);
+      expectOperand = false;
+    }
+    if (expectOperand && !operands.isEmpty())
+      throw new IllegalArgumentException("dangling operator");
+    List<String> clauses = new ArrayList<String>();
+    // bare juxtaposed terms may be matched as a phrase, so only whole boolean clauses are sorted
+    boolean allCompound = true;
+    // juxtaposition binds like AND, so only clauses joined by AND alone commute with it
+    Set<String> joins = new HashSet<String>();
+    for (int i = 0; i < operands.size(); i++) {
+      String clause = clause(operands.get(i), operators.get(i), sequences.get(i), hasNot);
+      allCompound &= !operators.get(i).isEmpty() || clause.startsWith("(");
+      joins.addAll(operators.get(i));
+      clauses.add(clause);
+    }
+    if (!hasNot && allCompound && (joins.isEmpty() || joins.equals(Collections.singleton(AND))))
+      Collections.sort(clauses);
+    return String.join(" ", clauses);
+  }
+
+  private String clause(List<String> operands, List<String> operators, List<String> sequence,
+          boolean hasNot) {
+    if (operands.size() == 1 && operators.isEmpty())
+      return operands.get(0);
+    boolean sortable = !hasNot && !operators.isEmpty()
+            && Collections.frequency(operators, operators.get(0)) == operators.size();
+    if (sortable) {
+      List<String> sorted = new ArrayList<String>(operands);
+      Collections.sort(sorted);
+      return String.join(" " + operators.get(0) + " ", sorted);
+    }
+    return String.join(" ", sequence);
+  }
+
+  private String operand() {
+    String t = tokens.get(pos++);
+    if (!t.equals("("))
+      return t.toLowerCase(Locale.ROOT);
+    String inner = level();
+    if (pos >= tokens.size() || !tokens.get(pos).equals(")"))
+      throw new IllegalArgumentException("unbalanced parentheses");
+    pos++;
+    if (inner.isEmpty())
+      throw new IllegalArgumentException("empty group");
+    // a group of a single term needs no parentheses
+    if (!inner.contains(" ") || (inner.startsWith("\"") && inner.indexOf('"', 1) == inner
+            .length() - 1))
+      return inner;
+    return "(" + inner + ")";
+  }
+
+  private static boolean isOperator(String token) {
+    return token.equals(AND) || token.equals(OR) || token.equals(NOT);
+  }
+
+  /**
+   * Splits query into terms, quoted phrases, parentheses and operators. A field tag such as
+   * "[mesh]" stays with the term before it.
+   */
+  private static List<String> tokenize(String query) {
+    List<String> tokens = new ArrayList<String>();
+    int i = 0;
+    int n = query.length();
+    while (i < n) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(' || c == ')') {
+        tokens.add(String.valueOf(c));
+        i++;
+      } else if (c == '"') {
+        int end = query.indexOf('"', i + 1);
+        if (end < 0)
+          end = n;
+        String phrase = query.substring(i + 1, end).trim().replaceAll("\\s+", " ");
+        tokens.add("\"" + phrase + "\"");
+        i = end + 1;
+      } else {
+        int start = i;
+        while (i < n && !Character.isWhitespace(query.charAt(i)) && query.charAt(i) != '('
+                && query.charAt(i) != ')')
+          i++;
+        String term = query.substring(start, i);
+        int last = tokens.size() - 1;
+        if (term.startsWith("[") && last >= 0 && !isOperator(tokens.get(last))
+                && !tokens.get(last).equals("(") && !tokens.get(last).equals(")"))
+          tokens.set(last, tokens.get(last) + " " + term);
+        else
+          tokens.add(term);
+      }
+    }
+    return tokens;
+  }
+}
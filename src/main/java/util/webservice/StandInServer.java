@@ -0,0 +1,305 @@
+package util.webservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Entity;
+import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse.Finding;
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
+
+/**
+ * Local stand-in for the GoPubMed and full text services, for benchmarks and load tests without
+ * network. It answers from the service cache directory; in record mode misses are fetched from
+ * the real services (the URLs of the -upstream properties) and added to the cache. Latency drawn
+ * from a log-normal distribution and a share of 503 errors can be injected into every response.
+ *
+ * To point the pipeline at it, use a copy of project.properties whose service URLs start with
+ * http://localhost:&lt;port&gt;/gopubmed/ and whose metal.service is http://localhost:&lt;port&gt;/pmc/, and
+ * set GoPubMedServiceFactory.PROPERTIES_FILE to it (or edit project.properties itself).
+ */
+public class StandInServer {
+
+  private final WebAPIServiceProxy cache;
+
+  private final double medianLatency;
+
+  private final double latencySigma;
+
+  private final double errorRate;
+
+  private final Gson gson = new Gson();
+
+  private final Random random = new Random();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * @param cache answers the requests; a CachedWebAPIServiceProxy, OFFLINE unless recording
+   * @param medianLatency median injected latency in ms, 0 for none
+   * @param latencySigma sigma of the log-normal latency distribution
+   * @param errorRate share of requests answered with 503
+   */
+  public StandInServer(WebAPIServiceProxy cache, double medianLatency, double latencySigma,
+          double errorRate) {
+    this.cache = cache;
+    this.medianLatency = medianLatency;
+    this.latencySigma = latencySigma;
+    this.errorRate = errorRate;
+  }
+
+  private static void printUsageMessage() {
+    System.out.println(" Arguments to the program are as follows : \n"
+            + "  [-port <port>]             port to listen on (default 30001)\n"
+            + "  [-cache <dir>]             cache directory (default src/main/resources/cache)\n"
+            + "  [-record <properties>]     fetch misses from the services of these properties\n"
+            + "  [-latency <ms>]            median injected latency (default 0)\n"
+            + "  [-sigma <sigma>]           sigma of the log-normal latency (default 0.5)\n"
+            + "  [-errors <rate>]           share of requests answered with 503 (default 0)\n"
+            + "  [-pages <n>]               PubMed result pages cached per query, as when\n"
+            + "                             recorded (default 1)\n"
+            + "  [-threads <n>]             request threads (default 16)");
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = 30001;
+    String upstream = null;
+    double latency = 0;
+    double sigma = 0.5;
+    double errorRate = 0;
+    int threads = 16;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-port") && i + 1 < args.length)
+        port = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-cache") && i + 1 < args.length)
+        CachedWebAPIServiceProxy.CACHE_PATH = args[++i].endsWith("/") ? args[i] : args[i] + "/";
+      else if (args[i].equals("-record") && i + 1 < args.length)
+        upstream = args[++i];
+      else if (args[i].equals("-latency") && i + 1 < args.length)
+        latency = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-sigma") && i + 1 < args.length)
+        sigma = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-errors") && i + 1 < args.length)
+        errorRate = Double.parseDouble(args[++i]);
+      else if (args[i].equals("-threads") && i + 1 < args.length)
+        threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-pages") && i + 1 < args.length)
+        WebAPIServiceProxy.PUBMED_PAGES = Integer.parseInt(args[++i]);
+      else {
+        printUsageMessage();
+        System.exit(1);
+      }
+    }
+    if (upstream != null)
+      GoPubMedServiceFactory.PROPERTIES_FILE = upstream;
+    CachedWebAPIServiceProxy.OFFLINE = upstream == null;
+    StandInServer standIn = new StandInServer(new CachedWebAPIServiceProxy(), latency, sigma,
+            errorRate);
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/gopubmed/", standIn::handleGoPubMed);
+    server.createContext("/pmc/", standIn::handleFullText);
+    server.setExecutor(Executors.newFixedThreadPool(threads));
+    server.start();
+    System.out.println("Stand-in server " + (upstream == null ? "replaying" : "recording")
+            + " on port " + port);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(standIn
+            .getStatistics())));
+  }
+
+  /**
+   * /gopubmed/&lt;service&gt;/ - the keywords are the first parameter of the JSON request; PubMed
+   * requests may be followed by the page and the documents per page, and get that slice of the
+   * cached documents
+   */
+  private void handleGoPubMed(HttpExchange exchange) throws IOException {
+    if (injectFault(exchange))
+      return;
+    String[] path = exchange.getRequestURI().getPath().split("/");
+    String service = path.length > 2 ? path[2] : "";
+    JSONArray params = readParameters(exchange);
+    String keywords = params == null ? null : params.optString(0, null);
+    if (keywords == null) {
+      respond(exchange, 400, "No keywords in request");
+      return;
+    }
+    JsonObject result = new JsonObject();
+    if (service.equals("pubmed")) {
+      List<Document> documents = cache.getPubMedDocumentsFromQuery(keywords);
+      if (documents == null) {
+        misses.incrementAndGet();
+        documents = new ArrayList<Document>();
+      }
+      int page = Math.max(0, params.optInt(1, 0));
+      int perPage = params.optInt(2, 0);
+      List<Document> slice = documents;
+      if (perPage > 0) {
+        int from = (int) Math.min((long) page * perPage, documents.size());
+        slice = documents.subList(from, from + Math.min(perPage, documents.size() - from));
+      } else {
+        page = 0;
+      }
+      result.addProperty("keywords", keywords);
+      result.addProperty("page", page);
+      result.addProperty("size", documents.size());
+      result.addProperty("documentsPerPage", perPage > 0 ? perPage : documents.size());
+      result.add("documents", gson.toJsonTree(slice));
+    } else if (service.equals("linkedlifedata")) {
+      List<Entity> entities = cache.getEntitiesFromQuery(keywords);
+      if (entities == null) {
+        misses.incrementAndGet();
+        entities = new ArrayList<Entity>();
+      }
+      result.addProperty("keywords", keywords);
+      result.add("entities", gson.toJsonTree(entities));
+    } else {
+      OntologySource source = OntologySource.forServicePath(service);
+      if (source == null) {
+        respond(exchange, 404, "Unknown service " + service);
+        return;
+      }
+      // the cache holds the findings of all ontologies of a query together
+      List<Finding> findings = cache.getFindingsFromQuery(keywords);
+      if (findings == null) {
+        misses.incrementAndGet();
+        findings = new ArrayList<Finding>();
+      }
+      List<Finding> fromSource = new ArrayList<Finding>();
+      for (Finding f : findings) {
+        if (source.isSourceOf(f))
+          fromSource.add(f);
+      }
+      result.addProperty("keywords", keywords);
+      result.add("findings", gson.toJsonTree(fromSource));
+    }
+    JsonObject response = new JsonObject();
+    response.add("result", result);
+    respond(exchange, 200, gson.toJson(response));
+  }
+
+  /**
+   * /pmc/&lt;pmid&gt;
+   */
+  private void handleFullText(HttpExchange exchange) throws IOException {
+    if (injectFault(exchange))
+      return;
+    String path = exchange.getRequestURI().getPath();
+    String pmid = path.substring(path.lastIndexOf('/') + 1);
+    JSONObject fullText = cache.getDocFullTextJSon(pmid);
+    if (fullText == null) {
+      misses.incrementAndGet();
+      respond(exchange, 404, "No full text for " + pmid);
+      return;
+    }
+    respond(exchange, 200, fullText.toString());
+  }
+
+  /**
+   * The request carries a JSON object like {"findPubMedCitations": ["keywords", 0, 10]}, either
+   * as the json form parameter or as the body itself.
+   *
+   * @return the parameters of the request, or null if it has none
+   */
+  private JSONArray readParameters(HttpExchange exchange) throws IOException {
+    String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+    String json = formParameter(body, "json");
+    if (json == null && exchange.getRequestURI().getRawQuery() != null)
+      json = formParameter(exchange.getRequestURI().getRawQuery(), "json");
+    if (json == null)
+      json = body.trim();
+    try {
+      JSONObject request = new JSONObject(json);
+      for (String method : request.keySet()) {
+        Object params = request.get(method);
+        if (params instanceof JSONArray && ((JSONArray) params).length() > 0)
+          return (JSONArray) params;
+        if (params instanceof String)
+          return new JSONArray().put(params);
+      }
+    } catch (JSONException e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+    return null;
+  }
+
+  private static String formParameter(String form, String name) throws IOException {
+    for (String pair : form.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0 && pair.substring(0, eq).equals(name))
+        return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+    }
+    return null;
+  }
+
+  /**
+   * Sleeps for the injected latency and answers the request with 503 if it is chosen to fail
+   *
+   * @return true if the request has been answered
+   */
+  private boolean injectFault(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    if (medianLatency > 0) {
+      double gaussian;
+      synchronized (random) {
+        gaussian = random.nextGaussian();
+      }
+      try {
+        Thread.sleep((long) (medianLatency * Math.exp(latencySigma * gaussian)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+      errors.incrementAndGet();
+      respond(exchange, 503, "Injected error");
+      return true;
+    }
+    return false;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type",
+            status == 200 ? "application/json; charset=UTF-8" : "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1)
+      bytes.write(buffer, 0, n);
+    return bytes.toByteArray();
+  }
+
+  public String getStatistics() {
+    return String.format("Stand-in server: %d requests, %d cache misses, %d injected errors",
+            requests.get(), misses.get(), errors.get());
+  }
+}
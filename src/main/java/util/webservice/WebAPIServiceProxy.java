@@ -2,14 +2,33 @@ package util.webservice;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.http.client.ClientProtocolException;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import util.webservice.cache.Fetched;
 import edu.cmu.lti.oaqa.bio.bioasq.services.GoPubMedService;
 import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse;
 import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse;
@@ -26,15 +45,143 @@ public class WebAPIServiceProxy {
 
   private MetalWebService metal;
 
+  private final EndpointLimiter citationsLimiter;
+
+  private final EndpointLimiter ontologyLimiter;
+
+  private final EndpointLimiter linkedLifeDataLimiter;
+
   private final Pattern punc = Pattern.compile("\\p{Punct}+");
 
   private final Pattern wsp = Pattern.compile("\\p{Space}+");
 
   private boolean FULL_TEXT_ONLY = false;
 
+  /**
+   * Threads available for asynchronous service calls
+   */
+  public static int IO_THREADS = 8;
+
+  /**
+   * Asynchronous calls waiting for a thread; beyond this the caller runs the call itself
+   */
+  public static int IO_QUEUE_SIZE = 256;
+
+  private static ExecutorService ioExecutor = null;
+
+  /**
+   * Ontologies searched for concepts by default
+   */
+  protected static final List<OntologySource> DEFAULT_ONTOLOGY_SOURCES = Collections
+          .unmodifiableList(Arrays.asList(OntologySource.DISEASE, OntologySource.GENE,
+                  OntologySource.MESH));
+
+  /**
+   * Ontologies searched for concepts, in the order their findings are returned
+   */
+  public static List<OntologySource> ONTOLOGY_SOURCES = new ArrayList<OntologySource>(
+          DEFAULT_ONTOLOGY_SOURCES);
+
+  /**
+   * How long to wait for the ontology searches of a query; findings of sources that have not
+   * answered by then are left out
+   */
+  public static long ONTOLOGY_TIMEOUT_MS = 10000;
+
+  private static ExecutorService ontologyExecutor = null;
+
+  /**
+   * Whether to hedge slow PubMed searches with a second, duplicate search
+   */
+  public static boolean HEDGE_PUBMED_SEARCHES = false;
+
+  /**
+   * Latency percentile after which a PubMed search is hedged
+   */
+  public static double HEDGE_PERCENTILE = 95;
+
+  /**
+   * Largest fraction of PubMed searches that may be hedged
+   */
+  public static double MAX_HEDGE_RATE = 0.05;
+
+  private static HedgingPolicy pubMedHedging = null;
+
+  /**
+   * Result pages of a PubMed search to retrieve. The pages after the first are fetched
+   * concurrently, within the rate and concurrency limits of the citations endpoint.
+   */
+  public static int PUBMED_PAGES = 1;
+
+  /**
+   * Candidate documents after which no more pages are waited for; 0 to retrieve all pages
+   */
+  public static int PUBMED_CANDIDATES = 0;
+
+  private static ExecutorService pageExecutor = null;
+
   public WebAPIServiceProxy() {
     this.service = GoPubMedServiceFactory.getInstance();
     this.metal = new MetalWebService();
+    this.citationsLimiter = EndpointLimiterFactory.getInstance(EndpointLimiterFactory.citations);
+    this.ontologyLimiter = EndpointLimiterFactory.getInstance(EndpointLimiterFactory.ontologies);
+    this.linkedLifeDataLimiter = EndpointLimiterFactory
+            .getInstance(EndpointLimiterFactory.linkedLifeData);
+  }
+
+  /**
+   * @return the bounded executor asynchronous service calls run on, shared by all proxies
+   */
+  protected static synchronized ExecutorService getIoExecutor() {
+    if (ioExecutor == null)
+      ioExecutor = newExecutor("webservice-io-");
+    return ioExecutor;
+  }
+
+  /**
+   * @return the executor the ontology searches of a query run on. It is separate from the I/O
+   *         executor, so that an asynchronous concept search never waits on its own queue.
+   */
+  private static synchronized ExecutorService getOntologyExecutor() {
+    if (ontologyExecutor == null)
+      ontologyExecutor = newExecutor("ontology-");
+    return ontologyExecutor;
+  }
+
+  /**
+   * @return the executor the further result pages of a PubMed search are fetched on, separate
+   *         from the I/O executor for the same reason as the ontology executor
+   */
+  private static synchronized ExecutorService getPageExecutor() {
+    if (pageExecutor == null)
+      pageExecutor = newExecutor("pubmed-pages-");
+    return pageExecutor;
+  }
+
+  /**
+   * @return a pool of IO_THREADS daemon threads with a queue of IO_QUEUE_SIZE; when the queue is
+   *         full the submitting thread runs the task itself
+   */
+  private static ExecutorService newExecutor(String threadPrefix) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60,
+            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(IO_QUEUE_SIZE), r -> {
+              Thread t = new Thread(r, threadPrefix + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return the hedging policy shared by all PubMed searches of the process
+   */
+  protected static synchronized HedgingPolicy getPubMedHedging() {
+    if (pubMedHedging == null)
+      pubMedHedging = new HedgingPolicy("PubMed search", newExecutor("pubmed-"),
+              HEDGE_PERCENTILE, MAX_HEDGE_RATE, 256, 20);
+    return pubMedHedging;
   }
 
   protected String cleanString(String s, String replaceSpacesWith) {
@@ -50,47 +197,49 @@ public class WebAPIServiceProxy {
    * @return a list of Finding objects based on a query string
    */
   public List<OntologyServiceResponse.Finding> getFindingsFromQuery(String query) {
-    List<OntologyServiceResponse.Finding> findings = new ArrayList<OntologyServiceResponse.Finding>();
-    try {
-      OntologyServiceResponse.Result diseaseOntologyResult = service
-              .findDiseaseOntologyEntitiesPaged(query, 0);
-      if (diseaseOntologyResult != null) {
-        System.out.println("Disease ontology: " + diseaseOntologyResult.getFindings().size());
-        findings.addAll(diseaseOntologyResult.getFindings());
-      }
-
-      OntologyServiceResponse.Result geneOntologyResult = service.findGeneOntologyEntitiesPaged(
-              query, 0);
-      if (geneOntologyResult != null) {
-        System.out.println("Gene ontology: " + geneOntologyResult.getFindings().size());
-        findings.addAll(geneOntologyResult.getFindings());
-      }
-
-      /*OntologyServiceResponse.Result jochemResult = service.findJochemEntitiesPaged(query, 0);
-      if (jochemResult != null) {
-        System.out.println("Jochem: " + jochemResult.getFindings().size());
-        findings.addAll(jochemResult.getFindings());
-      }*/
+    return orEmpty(Fetched.resultsOf(fetchFindings(query)));
+  }
 
-      OntologyServiceResponse.Result meshResult = service.findMeshEntitiesPaged(query, 0);
-      if (meshResult != null) {
-        System.out.println("MeSH: " + meshResult.getFindings().size());
-        findings.addAll(meshResult.getFindings());
+  /**
+   * @return the findings of query, partial if some sources failed or missed the deadline, or null
+   *         if none could be searched
+   */
+  protected Fetched<OntologyServiceResponse.Finding> fetchFindings(String query) {
+    List<OntologyServiceResponse.Finding> findings = new ArrayList<OntologyServiceResponse.Finding>();
+    int failed = 0;
+    // all sources are searched at once, so the slowest one and not the sum decides the latency
+    Map<OntologySource, Future<OntologyServiceResponse.Result>> pending =
+            new LinkedHashMap<OntologySource, Future<OntologyServiceResponse.Result>>();
+    for (OntologySource source : ONTOLOGY_SOURCES) {
+      pending.put(source, getOntologyExecutor().submit(() -> ontologyLimiter.call(
+              () -> source.find(service, query))));
+    }
+    long deadline = System.currentTimeMillis() + ONTOLOGY_TIMEOUT_MS;
+    for (Map.Entry<OntologySource, Future<OntologyServiceResponse.Result>> e : pending.entrySet()) {
+      String label = e.getKey().getLabel();
+      try {
+        long wait = Math.max(0, deadline - System.currentTimeMillis());
+        OntologyServiceResponse.Result result = e.getValue().get(wait, TimeUnit.MILLISECONDS);
+        if (result != null) {
+          System.out.println(label + ": " + result.getFindings().size());
+          findings.addAll(result.getFindings());
+        }
+      } catch (TimeoutException ex) {
+        failed++;
+        e.getValue().cancel(true);
+        System.out.println(label + " timed out after " + ONTOLOGY_TIMEOUT_MS + " ms");
+      } catch (ExecutionException ex) {
+        failed++;
+        ex.getCause().printStackTrace();
+        System.out.println("Exception occurred! " + ex.getCause().getMessage());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
       }
-
-      /*OntologyServiceResponse.Result uniprotResult = service.findUniprotEntitiesPaged(query, 0);
-      if (uniprotResult != null) {
-        System.out.println("UniProt: " + uniprotResult.getFindings().size());
-        findings.addAll(uniprotResult.getFindings());
-      }*/
-    } catch (ClientProtocolException e) {
-      e.printStackTrace();
-      System.out.println("ClientProtocolException occurred! " + e.getMessage());
-    } catch (Exception e) {
-      e.printStackTrace();
-      System.out.println("Exception occurred! " + e.getMessage());
     }
-    return findings;
+    if (failed == 0)
+      return Fetched.complete(findings);
+    return failed < pending.size() ? Fetched.partial(findings) : null;
   }
 
   /**
@@ -99,10 +248,18 @@ public class WebAPIServiceProxy {
    * @return a list of Entities from query string
    */
   public List<LinkedLifeDataServiceResponse.Entity> getEntitiesFromQuery(String query) {
+    return orEmpty(fetchEntities(query));
+  }
+
+  /**
+   * @return the entities of query, or null if the search failed
+   */
+  protected List<LinkedLifeDataServiceResponse.Entity> fetchEntities(String query) {
     List<LinkedLifeDataServiceResponse.Entity> entities = new ArrayList<LinkedLifeDataServiceResponse.Entity>();
     LinkedLifeDataServiceResponse.Result linkedLifeDataResult;
     try {
-      linkedLifeDataResult = service.findLinkedLifeDataEntitiesPaged(query, 0);
+      linkedLifeDataResult = linkedLifeDataLimiter.call(
+              () -> service.findLinkedLifeDataEntitiesPaged(query, 0));
       if (linkedLifeDataResult != null) {
         System.out.println("LinkedLifeData: " + linkedLifeDataResult.getEntities().size());
         entities.addAll(linkedLifeDataResult.getEntities());
@@ -110,9 +267,11 @@ public class WebAPIServiceProxy {
     } catch (ClientProtocolException e) {
       e.printStackTrace();
       System.out.println("ClientProtocolException occurred! " + e.getMessage());
+      return null;
     } catch (Exception e) {
       e.printStackTrace();
       System.out.println("Exception occurred! " + e.getMessage());
+      return null;
     }
     return entities;
   }
@@ -120,25 +279,41 @@ public class WebAPIServiceProxy {
   /**
    * 
    * @param query
-   * @return a list of documents from query string
+   * @return a list of documents from query string, from up to PUBMED_PAGES result pages
    */
   public List<PubMedSearchServiceResponse.Document> getPubMedDocumentsFromQuery(String query) {
-    List<PubMedSearchServiceResponse.Document> docs = new ArrayList<PubMedSearchServiceResponse.Document>();
+    return orEmpty(Fetched.resultsOf(fetchPubMedDocuments(query, page -> {
+    })));
+  }
+
+  /**
+   * Hands the documents of query to consumer page by page as the result pages arrive, so that they
+   * can be processed while later pages are still being fetched. Pages are delivered in order, on
+   * the calling thread.
+   *
+   * @return number of documents delivered
+   */
+  public int streamPubMedDocumentsFromQuery(String query,
+          Consumer<List<PubMedSearchServiceResponse.Document>> consumer) {
+    Fetched<PubMedSearchServiceResponse.Document> docs = fetchPubMedDocuments(query, consumer);
+    return docs == null ? 0 : docs.getResults().size();
+  }
+
+  /**
+   * Fetches page 0, which tells how many pages there are, then the other pages up to PUBMED_PAGES
+   * at once. Once PUBMED_CANDIDATES documents have been delivered, pages that have not been sent
+   * yet are dropped.
+   *
+   * @param consumer gets the documents page by page, in order
+   * @return all documents delivered, partial if one of the pages after the first failed, or null
+   *         if the search failed
+   */
+  protected Fetched<PubMedSearchServiceResponse.Document> fetchPubMedDocuments(String query,
+          Consumer<List<PubMedSearchServiceResponse.Document>> consumer) {
+    AtomicBoolean stop = new AtomicBoolean();
     PubMedSearchServiceResponse.Result pubmedResult = null;
     try {
-      pubmedResult = service.findPubMedCitations(query, 0);
-      if(pubmedResult != null){
-        System.out.println("Documents: " + pubmedResult.getSize());
-        docs = pubmedResult.getDocuments();
-      }
-      if (FULL_TEXT_ONLY) {
-        for (PubMedSearchServiceResponse.Document doc : docs) {
-          if (!doc.isFulltextAvailable()) {
-            docs.remove(doc);
-          }
-        }
-      }
-      return docs;
+      pubmedResult = searchPubMedPage(query, 0, stop);
     } catch (ClientProtocolException e) {
       e.printStackTrace();
       System.out.println("ClientProtocolException occurred! " + e.getMessage());
@@ -146,13 +321,150 @@ public class WebAPIServiceProxy {
       e.printStackTrace();
       System.out.println("Exception occurred! " + e.getMessage());
     }
-    return docs;
+    if (pubmedResult == null || pubmedResult.getDocuments() == null)
+      return null;
+    System.out.println("Documents: " + pubmedResult.getSize());
+    List<PubMedSearchServiceResponse.Document> docs = new ArrayList<PubMedSearchServiceResponse.Document>();
+    int delivered = deliver(pubmedResult, consumer, docs);
+    int perPage = pubmedResult.getDocumentsPerPage() > 0 ? pubmedResult.getDocumentsPerPage()
+            : pubmedResult.getDocuments().size();
+    int pages = perPage == 0 ? 1 : Math.min(PUBMED_PAGES, (pubmedResult.getSize() + perPage - 1)
+            / perPage);
+    List<Future<PubMedSearchServiceResponse.Result>> pending = new ArrayList<Future<PubMedSearchServiceResponse.Result>>();
+    boolean complete = true;
+    for (int page = 1; page < pages && !enough(delivered); page++) {
+      int p = page;
+      pending.add(getPageExecutor().submit(() -> searchPubMedPage(query, p, stop)));
+    }
+    try {
+      for (Future<PubMedSearchServiceResponse.Result> f : pending) {
+        if (enough(delivered))
+          break;
+        try {
+          PubMedSearchServiceResponse.Result r = f.get();
+          if (r != null && r.getDocuments() != null)
+            delivered += deliver(r, consumer, docs);
+          else
+            complete = false;
+        } catch (ExecutionException e) {
+          complete = false;
+          System.out.println("Exception occurred! " + e.getCause().getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      complete = false;
+      Thread.currentThread().interrupt();
+    } finally {
+      stop.set(true);
+      for (Future<?> f : pending)
+        f.cancel(false);
+    }
+    return complete ? Fetched.complete(docs) : Fetched.partial(docs);
+  }
+
+  private static boolean enough(int delivered) {
+    return PUBMED_CANDIDATES > 0 && delivered >= PUBMED_CANDIDATES;
+  }
+
+  /**
+   * @param stop set once the page is no longer needed; a page waiting for the limiter then is not
+   *          sent
+   */
+  private PubMedSearchServiceResponse.Result searchPubMedPage(String query, int page,
+          AtomicBoolean stop) throws Exception {
+    Callable<PubMedSearchServiceResponse.Result> search = () -> citationsLimiter.call(
+            () -> stop.get() ? null : service.findPubMedCitations(query, page));
+    if (HEDGE_PUBMED_SEARCHES)
+      return getPubMedHedging().call(search);
+    return search.call();
+  }
+
+  private int deliver(PubMedSearchServiceResponse.Result pubmedResult,
+          Consumer<List<PubMedSearchServiceResponse.Document>> consumer,
+          List<PubMedSearchServiceResponse.Document> delivered) {
+    List<PubMedSearchServiceResponse.Document> docs = new ArrayList<PubMedSearchServiceResponse.Document>(
+            pubmedResult.getDocuments());
+    if (FULL_TEXT_ONLY)
+      docs.removeIf(doc -> !doc.isFulltextAvailable());
+    delivered.addAll(docs);
+    consumer.accept(docs);
+    return docs.size();
+  }
+
+  private static <T> List<T> orEmpty(List<T> results) {
+    return results == null ? new ArrayList<T>() : results;
   }
 
   public JSONObject getDocFullTextJSon(String pmid) {
     return metal.getDocFullTextJSon(pmid);
   }
 
+  /**
+   * @return the texts of the sections of the full text of pmid in order, or null if there is no
+   *         full text
+   */
+  public List<CharSequence> getDocFullTextSections(String pmid) {
+    return sectionsOf(getDocFullTextJSon(pmid));
+  }
+
+  /**
+   * Hands the sections of the full text of pmid to listener one by one, as they are read from the
+   * service (see {@link MetalWebService#streamDocFullText(String, MetalWebService.SectionListener)})
+   *
+   * @return true if the full text was read completely
+   */
+  public boolean streamDocFullTextSections(String pmid, MetalWebService.SectionListener listener) {
+    return metal.streamDocFullText(pmid, listener);
+  }
+
+  protected static List<CharSequence> sectionsOf(JSONObject fullText) {
+    if (fullText == null || !fullText.has("sections"))
+      return null;
+    try {
+      JSONArray sectionArr = fullText.getJSONArray("sections");
+      List<CharSequence> sections = new ArrayList<CharSequence>(sectionArr.length());
+      for (int i = 0; i < sectionArr.length(); i++) {
+        sections.add(sectionArr.getString(i));
+      }
+      return sections;
+    } catch (JSONException e) {
+      System.out.println("Exception: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Asynchronous version of {@link #getFindingsFromQuery(String)}
+   */
+  public CompletableFuture<List<OntologyServiceResponse.Finding>> getFindingsFromQueryAsync(
+          String query) {
+    return CompletableFuture.supplyAsync(() -> getFindingsFromQuery(query), getIoExecutor());
+  }
+
+  /**
+   * Asynchronous version of {@link #getEntitiesFromQuery(String)}
+   */
+  public CompletableFuture<List<LinkedLifeDataServiceResponse.Entity>> getEntitiesFromQueryAsync(
+          String query) {
+    return CompletableFuture.supplyAsync(() -> getEntitiesFromQuery(query), getIoExecutor());
+  }
+
+  /**
+   * Asynchronous version of {@link #getPubMedDocumentsFromQuery(String)}
+   */
+  public CompletableFuture<List<PubMedSearchServiceResponse.Document>>
+          getPubMedDocumentsFromQueryAsync(String query) {
+    return CompletableFuture.supplyAsync(() -> getPubMedDocumentsFromQuery(query),
+            getIoExecutor());
+  }
+
+  /**
+   * Asynchronous version of {@link #getDocFullTextJSon(String)}
+   */
+  public CompletableFuture<JSONObject> getDocFullTextJSonAsync(String pmid) {
+    return CompletableFuture.supplyAsync(() -> getDocFullTextJSon(pmid), getIoExecutor());
+  }
+
   /**
    * Fetches the triples for a given question text
    * 
@@ -1,5 +1,8 @@
 package util.webservice;
 
+import util.webservice.cache.CacheStatistics;
+import util.webservice.cache.WriteBehind;
+
 public class WebAPIServiceProxyFactory {
   
   private static WebAPIServiceProxy proxy = null;
@@ -18,4 +21,15 @@ public class WebAPIServiceProxyFactory {
     return WebAPIServiceProxyFactory.proxy;
   }
 
+  /**
+   * @return the cache, endpoint and full text service statistics of the run so far
+   */
+  public static String getStatistics() {
+    // a run without write-behind has no writer to report on, and should not start one
+    WriteBehind writeBehind = WriteBehind.getExistingInstance();
+    return CacheStatistics.getReport() + (writeBehind == null ? "" : writeBehind.getStatistics())
+            + "\n\n" + EndpointLimiterFactory.getStatistics() + "\n"
+            + MetalWebService.getStatistics();
+  }
+
 }
@@ -0,0 +1,111 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cedarsoftware.util.io.JsonReader;
+
+/**
+ * Base of the schema-based binary codecs for the bioasq client response types. Each subclass
+ * writes the fields of its type in a fixed order. Payload: [byte schema version][varint count]
+ * then count records. Old json-io cache lines are parsed once, when they are imported, with the
+ * year rewrite applied there instead of on every read.
+ *
+ * @param <T> the type of a single cached result
+ */
+public abstract class BinaryRecordCodec<T> implements RecordCodec<T> {
+
+  /**
+   * Rewrite 2014 years/MeSH versions to 2012 when importing the old json cache
+   */
+  public boolean APPLY_YEAR_CHANGE_HACK = true;
+
+  protected abstract int getSchemaVersion();
+
+  protected abstract void write(RecordOutput out, T t);
+
+  protected abstract T read(RecordInput in);
+
+  @Override
+  public byte[] encode(List<T> results) throws IOException {
+    RecordOutput out = new RecordOutput();
+    out.writeVarint(getSchemaVersion());
+    out.writeVarint(results.size());
+    for (T t : results) {
+      write(out, t);
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public List<T> decode(ByteBuffer payload) throws IOException {
+    RecordInput in = new RecordInput(payload);
+    int version = in.readVarint();
+    if (version != getSchemaVersion())
+      throw new IOException("Unexpected schema version " + version + " in " + getFormatName());
+    int count = in.readVarint();
+    List<T> results = new ArrayList<T>(count);
+    for (int i = 0; i < count; i++) {
+      results.add(read(in));
+    }
+    return results;
+  }
+
+  @Override
+  public byte[] importLegacy(List<String> jsonLines) throws IOException {
+    List<T> results = new ArrayList<T>();
+    for (String line : jsonLines) {
+      if (APPLY_YEAR_CHANGE_HACK)
+        line = LegacyCacheImporter.applyYearChangeHack(line);
+      @SuppressWarnings("unchecked")
+      T t = (T) JsonReader.jsonToJava(line);
+      if (t != null)
+        results.add(t);
+    }
+    return encode(results);
+  }
+
+  /**
+   * Writes a year as a varint: 0 for null, 1 followed by the string if it is not a plain number,
+   * otherwise the year + 2.
+   */
+  protected static void writeYear(RecordOutput out, String year) {
+    if (year == null) {
+      out.writeVarint(0);
+    } else if (year.matches("\\d{1,9}") && !(year.length() > 1 && year.startsWith("0"))) {
+      out.writeVarint(Integer.parseInt(year) + 2);
+    } else {
+      out.writeVarint(1);
+      out.writeString(year);
+    }
+  }
+
+  protected static String readYear(RecordInput in) {
+    int v = in.readVarint();
+    if (v == 0)
+      return null;
+    if (v == 1)
+      return in.readString();
+    return Integer.toString(v - 2);
+  }
+
+  protected static String getString(Object o, String field) {
+    return (String) FieldAccess.get(o, field);
+  }
+
+  protected static double getDouble(Object o, String field) {
+    Object v = FieldAccess.get(o, field);
+    return v == null ? 0d : ((Number) v).doubleValue();
+  }
+
+  protected static List<?> getList(Object o, String field) {
+    return (List<?>) FieldAccess.get(o, field);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static List<String> getStrings(Object o, String field) {
+    return (List<String>) FieldAccess.get(o, field);
+  }
+}
@@ -0,0 +1,259 @@
+package util.webservice.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.webservice.QueryCanonicalizer;
+
+import com.cedarsoftware.util.io.JsonWriter;
+
+/**
+ * Offline maintenance of the service cache directory. For every cache kind it
+ * <ul>
+ * <li>merges the old per-query .txt files (and optionally those of a cache.tar.gz) into the
+ * segment, keeping one entry per query and preferring real results over null markers,</li>
+ * <li>decodes every entry and drops the ones that fail,</li>
+ * <li>rewrites the segment without superseded or dropped records,</li>
+ * <li>prints entry and size statistics,</li>
+ * </ul>
+ * and can export the compacted cache as a cache.tar.gz in the old per-query file layout.
+ */
+public class CacheCompactor {
+
+  /**
+   * Start of the request options the proxy appends to a query to form its cache key
+   */
+  private static final String KEY_SUFFIX = " #";
+
+  private final String cachePath;
+
+  private boolean dryRun = false;
+
+  private Map<String, byte[]> archive = new LinkedHashMap<String, byte[]>();
+
+  public CacheCompactor(String cachePath) {
+    this.cachePath = cachePath.endsWith("/") ? cachePath : cachePath + "/";
+  }
+
+  private static void printUsageMessage() {
+    System.out.println(" Arguments to the program are as follows : \n"
+            + "  [-cache <dir>]            cache directory (default src/main/resources/cache)\n"
+            + "  [-import <cache.tar.gz>]  also merge the per-query files of an archive\n"
+            + "  [-export <cache.tar.gz>]  write the compacted cache as an archive\n"
+            + "  [-stats]                  only report statistics, do not rewrite anything");
+  }
+
+  public static void main(String[] args) throws Exception {
+    String cachePath = "src/main/resources/cache/";
+    String importPath = null;
+    String exportPath = null;
+    boolean stats = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-cache") && i + 1 < args.length)
+        cachePath = args[++i];
+      else if (args[i].equals("-import") && i + 1 < args.length)
+        importPath = args[++i];
+      else if (args[i].equals("-export") && i + 1 < args.length)
+        exportPath = args[++i];
+      else if (args[i].equals("-stats"))
+        stats = true;
+      else {
+        printUsageMessage();
+        System.exit(1);
+      }
+    }
+    CacheCompactor compactor = new CacheCompactor(cachePath);
+    compactor.dryRun = stats;
+    if (importPath != null)
+      compactor.archive = TarArchive.readTarGz(importPath);
+    Map<String, byte[]> exported = compactor.run(exportPath != null);
+    if (exportPath != null) {
+      TarArchive.writeTarGz(exportPath, exported);
+      System.out.println("Wrote " + exported.size() + " files to " + exportPath);
+    }
+  }
+
+  /**
+   * Compacts every cache kind.
+   *
+   * @param export whether to also render every entry in the old per-query file layout
+   * @return archive path -> file contents of the exported cache, empty if export is false
+   */
+  public Map<String, byte[]> run(boolean export) throws IOException {
+    Map<String, byte[]> exported = new LinkedHashMap<String, byte[]>();
+    List<ResultCache<?>> caches = Arrays.<ResultCache<?>> asList(
+            ResultCacheFactory.newFindingCache(cachePath, true, true, 0),
+            ResultCacheFactory.newEntityCache(cachePath, true, true, 0),
+            ResultCacheFactory.newDocumentCache(cachePath, true, true, 0, 0),
+            ResultCacheFactory.newFullTextCache(cachePath, true, true, 0));
+    System.out.println(String.format("%-10s %8s %8s %8s %8s %8s %12s %12s", "kind", "files",
+            "queries", "entries", "empty", "invalid", "bytes", "compacted"));
+    for (ResultCache<?> cache : caches) {
+      compact(cache, export ? exported : null);
+      cache.close();
+    }
+    return exported;
+  }
+
+  private <T> void compact(ResultCache<T> cache, Map<String, byte[]> exported) throws IOException {
+    String kind = cache.getName();
+    Map<String, List<String>> legacy = LegacyCacheImporter.readDirectory(cachePath + kind);
+    int files = countFiles(cachePath + kind);
+    String prefix = "cache/" + kind + "/";
+    for (Map.Entry<String, byte[]> e : archive.entrySet()) {
+      if (e.getKey().startsWith(prefix) && e.getKey().endsWith(".txt")) {
+        List<String> lines = Arrays.asList(new String(e.getValue(), StandardCharsets.UTF_8)
+                .split("\r?\n"));
+        if (LegacyCacheImporter.addFile(legacy, lines))
+          files++;
+      }
+    }
+
+    cache.open();
+    SegmentStore store = cache.store;
+    long bytesBefore = store.bytesOnDisk() + bodyStoreBytes(cache);
+
+    // merge old files the segment does not know about, or knows only as empty
+    if (!dryRun) {
+      for (Map.Entry<String, List<String>> e : legacy.entrySet()) {
+        if (!store.contains(e.getKey()) || (!e.getValue().isEmpty() && isEmpty(cache, e.getKey())))
+          store.put(e.getKey(), cache.codec.importLegacy(e.getValue()));
+      }
+    }
+
+    // move entries cached under the raw query to its canonical form
+    Set<String> renamed = new HashSet<String>();
+    if (!dryRun && !cache.getName().equals(ResultCacheFactory.snippets))
+      renamed = canonicalizeKeys(cache);
+
+    // validate
+    List<String> valid = new ArrayList<String>();
+    int empty = 0;
+    int invalid = 0;
+    for (String key : store.keySet()) {
+      if (renamed.contains(key))
+        continue;
+      try {
+        List<T> results = cache.codec.decode(store.get(key));
+        if (cache instanceof DocumentResultCache
+                && results.size() != Payloads.decodeStrings(store.get(key)).size())
+          throw new IOException("missing document bodies");
+        if (results.isEmpty())
+          empty++;
+        valid.add(key);
+        if (exported != null)
+          exported.put(prefix + String.format("%06d", exported.size()) + ".txt", render(key,
+                  results));
+      } catch (Exception e) {
+        System.out.println("Invalid " + kind + " entry \"" + key + "\": " + e.getMessage());
+        invalid++;
+      }
+    }
+
+    if (!dryRun) {
+      store.compact(valid);
+      cache.getMetadataStore().compact(valid);
+      if (cache instanceof DocumentResultCache)
+        compactBodies((DocumentResultCache) cache, valid);
+    }
+    long bytesAfter = store.bytesOnDisk() + bodyStoreBytes(cache);
+    System.out.println(String.format("%-10s %8d %8d %8d %8d %8d %12d %12d", kind, files,
+            legacy.size(), valid.size(), empty, invalid, bytesBefore, bytesAfter));
+  }
+
+  /**
+   * Re-keys every entry under the canonical form of its query, keeping an existing entry of the
+   * canonical key. The compaction that follows drops the old keys.
+   *
+   * @return the old keys
+   */
+  private Set<String> canonicalizeKeys(ResultCache<?> cache) throws IOException {
+    Set<String> renamed = new HashSet<String>();
+    SegmentStore store = cache.store;
+    SegmentStore metadata = cache.getMetadataStore();
+    for (String key : store.keySet()) {
+      String canonical = canonicalizeKey(key);
+      if (canonical.equals(key))
+        continue;
+      if (!store.contains(canonical)) {
+        store.put(canonical, bytes(store.get(key)));
+        ByteBuffer meta = metadata.get(key);
+        if (meta != null)
+          metadata.put(canonical, bytes(meta));
+      }
+      renamed.add(key);
+    }
+    return renamed;
+  }
+
+  /**
+   * Canonicalizes the query of a key and keeps the suffix the proxy appends to it, such as
+   * " #ontologies=..." or " #pages=...", as it is.
+   *
+   * @return the key the proxy would store the entry under
+   */
+  static String canonicalizeKey(String key) {
+    int suffix = key.indexOf(KEY_SUFFIX);
+    if (suffix < 0)
+      return QueryCanonicalizer.canonicalize(key);
+    return QueryCanonicalizer.canonicalize(key.substring(0, suffix)) + key.substring(suffix);
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] b = new byte[buffer.remaining()];
+    buffer.get(b);
+    return b;
+  }
+
+  /**
+   * Drops document bodies no query refers to any more
+   */
+  private void compactBodies(DocumentResultCache cache, List<String> queries) throws IOException {
+    Set<String> referenced = new HashSet<String>();
+    for (String query : queries) {
+      referenced.addAll(Payloads.decodeStrings(cache.store.get(query)));
+    }
+    cache.getBodyStore().compact(referenced);
+  }
+
+  private long bodyStoreBytes(ResultCache<?> cache) throws IOException {
+    if (cache instanceof DocumentResultCache)
+      return ((DocumentResultCache) cache).getBodyStore().bytesOnDisk();
+    return 0;
+  }
+
+  private <T> boolean isEmpty(ResultCache<T> cache, String key) {
+    try {
+      return cache.codec.decode(cache.store.get(key)).isEmpty();
+    } catch (Exception e) {
+      return true;
+    }
+  }
+
+  /**
+   * @return an entry in the layout of the old per-query cache files
+   */
+  private <T> byte[] render(String key, List<T> results) throws IOException {
+    StringBuilder sb = new StringBuilder(key);
+    if (results.isEmpty())
+      sb.append("\nnull");
+    for (T t : results) {
+      sb.append("\n").append(JsonWriter.objectToJson(t));
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private int countFiles(String dir) {
+    File[] files = new File(dir).listFiles((d, n) -> n.endsWith(".txt"));
+    return files == null ? 0 : files.length;
+  }
+}
@@ -0,0 +1,227 @@
+package util.webservice.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Hit, miss and miss latency counters of one cache kind. Every open cache registers its
+ * statistics as the MBean util.webservice.cache:type=ResultCache,name=&lt;kind&gt;.
+ *
+ * A hit is a lookup answered from the cache, a negative hit one answered with a cached empty
+ * result, and a miss one that called the service. Lookups that waited for the service call of a
+ * concurrent miss on the same key are counted as coalesced misses. Miss latencies are kept in a
+ * histogram of power-of-two millisecond buckets.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+  /**
+   * Bucket i holds latencies below 2^i ms; the last bucket everything above
+   */
+  private static final int BUCKETS = 20;
+
+  private static final Map<String, CacheStatistics> registered =
+          new TreeMap<String, CacheStatistics>();
+
+  private final ResultCache<?> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong negativeHits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final AtomicLongArray missLatencies = new AtomicLongArray(BUCKETS);
+
+  private volatile long loadTimeMillis = 0;
+
+  public CacheStatistics(ResultCache<?> cache) {
+    this.cache = cache;
+  }
+
+  public void recordHit(boolean empty) {
+    (empty ? negativeHits : hits).incrementAndGet();
+  }
+
+  public void recordMiss(long millis) {
+    misses.incrementAndGet();
+    int bucket = 0;
+    while (bucket < BUCKETS - 1 && millis >= (1L << bucket))
+      bucket++;
+    missLatencies.incrementAndGet(bucket);
+  }
+
+  public void recordCoalescedMiss() {
+    coalesced.incrementAndGet();
+  }
+
+  public void setLoadTimeMillis(long millis) {
+    loadTimeMillis = millis;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getNegativeHits() {
+    return negativeHits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getCoalescedMisses() {
+    return coalesced.get();
+  }
+
+  @Override
+  public double getHitRate() {
+    long found = hits.get() + negativeHits.get();
+    long total = found + misses.get() + coalesced.get();
+    return total == 0 ? 0 : (double) found / total;
+  }
+
+  @Override
+  public long getLoadTimeMillis() {
+    return loadTimeMillis;
+  }
+
+  @Override
+  public long getEntries() {
+    return cache.getStore().size();
+  }
+
+  @Override
+  public long getBytesOnDisk() {
+    try {
+      return cache.bytesOnDisk();
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public long getMissLatencyMedianMillis() {
+    return missLatencyPercentile(50);
+  }
+
+  @Override
+  public long getMissLatency99thPercentileMillis() {
+    return missLatencyPercentile(99);
+  }
+
+  /**
+   * @return upper bound in ms of the histogram bucket holding the percentile, -1 if no misses
+   */
+  public long missLatencyPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      total += missLatencies.get(i);
+    if (total == 0)
+      return -1;
+    long rank = (long) Math.ceil(percentile / 100 * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += missLatencies.get(i);
+      if (seen >= rank)
+        return 1L << i;
+    }
+    return 1L << (BUCKETS - 1);
+  }
+
+  @Override
+  public String getMissLatencyHistogram() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < BUCKETS; i++) {
+      long n = missLatencies.get(i);
+      if (n == 0)
+        continue;
+      if (sb.length() > 0)
+        sb.append(", ");
+      sb.append(i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i)).append("ms:")
+              .append(n);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void reset() {
+    hits.set(0);
+    negativeHits.set(0);
+    misses.set(0);
+    coalesced.set(0);
+    for (int i = 0; i < BUCKETS; i++)
+      missLatencies.set(i, 0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%-10s %8d %8d %8d %8d %6.1f%% %8d %12d %8d %8d  %s", cache.getName(),
+            getHits(), getNegativeHits(), getMisses(), getCoalescedMisses(), 100 * getHitRate(),
+            getEntries(), getBytesOnDisk(), getLoadTimeMillis(),
+            getMissLatency99thPercentileMillis(), getMissLatencyHistogram());
+  }
+
+  /**
+   * Makes the statistics visible through JMX and in {@link #getReport()}, replacing those of an
+   * earlier cache of the same kind
+   */
+  static synchronized void register(CacheStatistics statistics) {
+    String name = statistics.cache.getName();
+    registered.put(name, statistics);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+      server.registerMBean(statistics, objectName);
+    } catch (Exception e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+  }
+
+  static synchronized void unregister(CacheStatistics statistics) {
+    String name = statistics.cache.getName();
+    if (registered.get(name) != statistics)
+      return;
+    registered.remove(name);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+    } catch (Exception e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+  }
+
+  private static ObjectName objectName(String name) throws Exception {
+    return new ObjectName("util.webservice.cache:type=ResultCache,name=" + name);
+  }
+
+  /**
+   * @return a table of the statistics of every open cache
+   */
+  public static synchronized String getReport() {
+    StringBuilder sb = new StringBuilder(String.format(
+            "%-10s %8s %8s %8s %8s %7s %8s %12s %8s %8s  %s\n", "kind", "hits", "neg.hits",
+            "misses", "coalesc.", "rate", "entries", "bytes", "load ms", "p99 ms",
+            "miss latency"));
+    for (CacheStatistics statistics : registered.values()) {
+      sb.append(statistics).append('\n');
+    }
+    return sb.toString();
+  }
+}
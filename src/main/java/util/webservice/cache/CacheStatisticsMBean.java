@@ -0,0 +1,31 @@
+package util.webservice.cache;
+
+/**
+ * JMX view of the statistics of one cache kind
+ */
+public interface CacheStatisticsMBean {
+
+  public long getHits();
+
+  public long getNegativeHits();
+
+  public long getMisses();
+
+  public long getCoalescedMisses();
+
+  public double getHitRate();
+
+  public long getLoadTimeMillis();
+
+  public long getEntries();
+
+  public long getBytesOnDisk();
+
+  public long getMissLatencyMedianMillis();
+
+  public long getMissLatency99thPercentileMillis();
+
+  public String getMissLatencyHistogram();
+
+  public void reset();
+}
@@ -0,0 +1,80 @@
+package util.webservice.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.MeshAnnotation;
+
+/**
+ * Binary schema for PubMed documents:
+ * pmid, title, documentAbstract, journal, year, fulltextAvailable, meshHeading,
+ * meshAnnotations (termLabel, uri (id, namespace)).
+ */
+public class DocumentCodec extends BinaryRecordCodec<Document> {
+
+  private static final Class<?> URI = FieldAccess.type(MeshAnnotation.class, "uri");
+
+  @Override
+  public String getFormatName() {
+    return "bin";
+  }
+
+  @Override
+  protected int getSchemaVersion() {
+    return 1;
+  }
+
+  @Override
+  protected void write(RecordOutput out, Document d) {
+    out.writeString(getString(d, "pmid"));
+    out.writeString(getString(d, "title"));
+    out.writeString(getString(d, "documentAbstract"));
+    out.writeString(getString(d, "journal"));
+    writeYear(out, getString(d, "year"));
+    out.writeBoolean(Boolean.TRUE.equals(FieldAccess.get(d, "fulltextAvailable")));
+    out.writeStrings(getStrings(d, "meshHeading"));
+    List<?> annotations = getList(d, "meshAnnotations");
+    out.writeSize(annotations == null ? -1 : annotations.size());
+    if (annotations != null) {
+      for (Object a : annotations) {
+        out.writeString(getString(a, "termLabel"));
+        Object uri = FieldAccess.get(a, "uri");
+        out.writeBoolean(uri != null);
+        if (uri != null) {
+          out.writeString(getString(uri, "id"));
+          out.writeString(getString(uri, "namespace"));
+        }
+      }
+    }
+  }
+
+  @Override
+  protected Document read(RecordInput in) {
+    Document d = FieldAccess.newInstance(Document.class);
+    FieldAccess.set(d, "pmid", in.readString());
+    FieldAccess.set(d, "title", in.readString());
+    FieldAccess.set(d, "documentAbstract", in.readString());
+    FieldAccess.set(d, "journal", in.readString());
+    FieldAccess.set(d, "year", readYear(in));
+    FieldAccess.set(d, "fulltextAvailable", in.readBoolean());
+    FieldAccess.set(d, "meshHeading", in.readStrings());
+    int size = in.readSize();
+    if (size >= 0) {
+      List<MeshAnnotation> annotations = new ArrayList<MeshAnnotation>(size);
+      for (int i = 0; i < size; i++) {
+        MeshAnnotation a = FieldAccess.newInstance(MeshAnnotation.class);
+        FieldAccess.set(a, "termLabel", in.readString());
+        if (in.readBoolean()) {
+          Object uri = FieldAccess.newInstance(URI);
+          FieldAccess.set(uri, "id", in.readString());
+          FieldAccess.set(uri, "namespace", in.readString());
+          FieldAccess.set(a, "uri", uri);
+        }
+        annotations.add(a);
+      }
+      FieldAccess.set(d, "meshAnnotations", annotations);
+    }
+    return d;
+  }
+}
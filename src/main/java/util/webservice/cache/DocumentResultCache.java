@@ -0,0 +1,222 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
+
+/**
+ * Normalized cache for PubMed search results. A query maps to the ordered list of PMIDs it
+ * returned; the body (title, abstract, MeSH annotations...) of each PMID is stored exactly once in
+ * a separate segment and shared by every query that returned it. Decoded bodies are kept in a
+ * memory tier of their own so that popular documents are one object on the heap, not one per
+ * query. New bodies are written together with the query entries that refer to them, in one append
+ * before theirs, so in write-behind mode they too are written by the {@link WriteBehind} writer.
+ */
+public class DocumentResultCache extends ResultCache<Document> {
+
+  private final PmidListCodec pmidCodec;
+
+  /**
+   * @param cachePath directory the segment files live in
+   * @param bodyCodec codec for a single document body
+   * @param lazy whether to decode entries on first use instead of when the cache is opened
+   * @param memoryBudget approximate heap bytes for decoded query results in lazy mode
+   * @param bodyMemoryBudget approximate heap bytes for decoded document bodies
+   */
+  public DocumentResultCache(String cachePath, RecordCodec<Document> bodyCodec, boolean lazy,
+          long memoryBudget, long bodyMemoryBudget) {
+    this(cachePath, new PmidListCodec(cachePath, bodyCodec, lazy ? bodyMemoryBudget : -1), lazy,
+            memoryBudget);
+  }
+
+  private DocumentResultCache(String cachePath, PmidListCodec pmidCodec, boolean lazy,
+          long memoryBudget) {
+    super(cachePath, "documents", pmidCodec, lazy, memoryBudget);
+    this.pmidCodec = pmidCodec;
+  }
+
+  @Override
+  public void open() throws IOException {
+    pmidCodec.bodies.open();
+    super.open();
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    pmidCodec.bodies.close();
+  }
+
+  @Override
+  public void clear() throws IOException {
+    super.clear();
+    synchronized (pmidCodec.bodies) {
+      pmidCodec.pendingBodies.clear();
+    }
+    pmidCodec.decodedBodies.clear();
+    pmidCodec.bodies.delete();
+  }
+
+  @Override
+  protected void writeEncoded() throws IOException {
+    pmidCodec.writeBodies();
+  }
+
+  @Override
+  protected void sync() throws IOException {
+    pmidCodec.bodies.force();
+    super.sync();
+  }
+
+  @Override
+  public long bytesOnDisk() throws IOException {
+    return super.bytesOnDisk() + pmidCodec.bodies.bytesOnDisk();
+  }
+
+  @Override
+  public List<SegmentStore> getStores() {
+    List<SegmentStore> stores = super.getStores();
+    stores.add(pmidCodec.bodies);
+    return stores;
+  }
+
+  /**
+   * @return the store of document bodies, keyed by PMID
+   */
+  public SegmentStore getBodyStore() {
+    return pmidCodec.bodies;
+  }
+
+  /**
+   * Payload of a query: the list of body keys (PMIDs) in result order.
+   */
+  private static class PmidListCodec implements RecordCodec<Document> {
+
+    private static final Pattern PMID = Pattern.compile("\"pmid\":\"([^\"]*)\"");
+
+    private final SegmentStore bodies;
+
+    private final RecordCodec<Document> bodyCodec;
+
+    private final MemoryTier<Document> decodedBodies;
+
+    /**
+     * Encoded bodies not written yet, guarded by bodies
+     */
+    private final Map<String, byte[]> pendingBodies = new LinkedHashMap<String, byte[]>();
+
+    PmidListCodec(String cachePath, RecordCodec<Document> bodyCodec, long bodyMemoryBudget) {
+      this.bodies = new SegmentStore(cachePath, "pubmed." + bodyCodec.getFormatName());
+      this.bodyCodec = bodyCodec;
+      this.decodedBodies = new MemoryTier<Document>(bodyMemoryBudget);
+    }
+
+    @Override
+    public byte[] encode(List<Document> results) throws IOException {
+      List<String> keys = new ArrayList<String>();
+      for (Document d : results) {
+        byte[] body = bodyCodec.encode(Collections.singletonList(d));
+        String key = d.getPmid() != null ? d.getPmid() : contentKey(body);
+        synchronized (bodies) {
+          if (!bodies.contains(key))
+            pendingBodies.putIfAbsent(key, body);
+        }
+        keys.add(key);
+      }
+      return Payloads.encodeStrings(keys);
+    }
+
+    @Override
+    public List<Document> decode(ByteBuffer payload) throws IOException {
+      List<Document> results = new ArrayList<Document>();
+      for (String key : Payloads.decodeStrings(payload)) {
+        Document d = getBody(key);
+        if (d != null)
+          results.add(d);
+      }
+      return results;
+    }
+
+    @Override
+    public byte[] importLegacy(List<String> jsonLines) throws IOException {
+      List<String> keys = new ArrayList<String>();
+      for (String line : jsonLines) {
+        byte[] body = bodyCodec.importLegacy(Collections.singletonList(line));
+        Matcher m = PMID.matcher(line);
+        String key = m.find() ? m.group(1) : contentKey(body);
+        putBody(key, body);
+        keys.add(key);
+      }
+      return Payloads.encodeStrings(keys);
+    }
+
+    @Override
+    public String getFormatName() {
+      return "pmid";
+    }
+
+    private void putBody(String key, byte[] body) throws IOException {
+      synchronized (bodies) {
+        if (!bodies.contains(key))
+          bodies.put(key, body);
+      }
+    }
+
+    /**
+     * Writes the bodies encode has set aside with one append
+     */
+    void writeBodies() throws IOException {
+      synchronized (bodies) {
+        if (pendingBodies.isEmpty())
+          return;
+        bodies.putAll(pendingBodies);
+        pendingBodies.clear();
+      }
+    }
+
+    Document getBody(String key) throws IOException {
+      Document d = decodedBodies.get(key);
+      if (d != null)
+        return d;
+      ByteBuffer body;
+      synchronized (bodies) {
+        byte[] pendingBody = pendingBodies.get(key);
+        body = pendingBody != null ? ByteBuffer.wrap(pendingBody) : bodies.get(key);
+      }
+      if (body == null)
+        return null;
+      int encodedBytes = body.remaining();
+      List<Document> decoded = bodyCodec.decode(body);
+      if (decoded.isEmpty())
+        return null;
+      decodedBodies.put(key, decoded.get(0), encodedBytes);
+      return decoded.get(0);
+    }
+
+    /**
+     * Key for the rare document without a PMID: a digest of its encoded body
+     */
+    private static String contentKey(byte[] body) {
+      try {
+        StringBuilder sb = new StringBuilder("sha1:");
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(body)) {
+          sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+        return "hash:" + new String(body, StandardCharsets.ISO_8859_1).hashCode();
+      }
+    }
+  }
+}
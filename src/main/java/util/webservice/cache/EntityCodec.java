@@ -0,0 +1,61 @@
+package util.webservice.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Entity;
+import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Relation;
+
+/**
+ * Binary schema for LinkedLifeData entities:
+ * entity, score, relations (labels, pred, subj, obj).
+ */
+public class EntityCodec extends BinaryRecordCodec<Entity> {
+
+  @Override
+  public String getFormatName() {
+    return "bin";
+  }
+
+  @Override
+  protected int getSchemaVersion() {
+    return 1;
+  }
+
+  @Override
+  protected void write(RecordOutput out, Entity e) {
+    out.writeString(getString(e, "entity"));
+    out.writeDouble(getDouble(e, "score"));
+    List<?> relations = getList(e, "relations");
+    out.writeSize(relations == null ? -1 : relations.size());
+    if (relations != null) {
+      for (Object r : relations) {
+        out.writeStrings(getStrings(r, "labels"));
+        out.writeString(getString(r, "pred"));
+        out.writeString(getString(r, "subj"));
+        out.writeString(getString(r, "obj"));
+      }
+    }
+  }
+
+  @Override
+  protected Entity read(RecordInput in) {
+    Entity e = FieldAccess.newInstance(Entity.class);
+    FieldAccess.set(e, "entity", in.readString());
+    FieldAccess.set(e, "score", in.readDouble());
+    int size = in.readSize();
+    if (size >= 0) {
+      List<Relation> relations = new ArrayList<Relation>(size);
+      for (int i = 0; i < size; i++) {
+        Relation r = FieldAccess.newInstance(Relation.class);
+        FieldAccess.set(r, "labels", in.readStrings());
+        FieldAccess.set(r, "pred", in.readString());
+        FieldAccess.set(r, "subj", in.readString());
+        FieldAccess.set(r, "obj", in.readString());
+        relations.add(r);
+      }
+      FieldAccess.set(e, "relations", relations);
+    }
+    return e;
+  }
+}
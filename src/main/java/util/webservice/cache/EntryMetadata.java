@@ -0,0 +1,55 @@
+package util.webservice.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * When and where a cache entry was fetched, and how long it stays valid. Stored next to the
+ * entry; an entry imported from the old per-query files counts as fetched when its file was last
+ * modified, from an unknown source.
+ *
+ * Layout: [long fetchedAt][long timeToLive][int sourceLength][source bytes]
+ */
+public class EntryMetadata {
+
+  /**
+   * Milliseconds since the epoch
+   */
+  public final long fetchedAt;
+
+  /**
+   * Milliseconds after fetchedAt the entry expires, or -1 if it never does
+   */
+  public final long timeToLive;
+
+  /**
+   * Service endpoint the entry was fetched from, or null if unknown
+   */
+  public final String source;
+
+  public EntryMetadata(long fetchedAt, long timeToLive, String source) {
+    this.fetchedAt = fetchedAt;
+    this.timeToLive = timeToLive;
+    this.source = source;
+  }
+
+  public boolean isExpired(long now) {
+    return timeToLive >= 0 && now - fetchedAt > timeToLive;
+  }
+
+  public byte[] encode() {
+    byte[] s = source == null ? new byte[0] : source.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer out = ByteBuffer.allocate(20 + s.length);
+    out.putLong(fetchedAt).putLong(timeToLive).putInt(s.length).put(s);
+    return out.array();
+  }
+
+  public static EntryMetadata decode(ByteBuffer in) {
+    long fetchedAt = in.getLong();
+    long timeToLive = in.getLong();
+    byte[] s = new byte[in.getInt()];
+    in.get(s);
+    return new EntryMetadata(fetchedAt, timeToLive, s.length == 0 ? null : new String(s,
+            StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,49 @@
+package util.webservice.cache;
+
+import java.util.List;
+
+/**
+ * What a fetcher got from a remote service on a cache miss: the results, and whether they are all
+ * of them. Results are incomplete when some of the calls behind them failed or timed out;
+ * {@link ResultCache} keeps those only for a short time so that the missing part is fetched
+ * again soon. A fetcher that got nothing at all returns null instead.
+ *
+ * @param <T> the type of a single result
+ */
+public class Fetched<T> {
+
+  private final List<T> results;
+
+  private final boolean complete;
+
+  private Fetched(List<T> results, boolean complete) {
+    this.results = results;
+    this.complete = complete;
+  }
+
+  public static <T> Fetched<T> complete(List<T> results) {
+    return new Fetched<T>(results, true);
+  }
+
+  /**
+   * @param results what the calls that succeeded returned
+   */
+  public static <T> Fetched<T> partial(List<T> results) {
+    return new Fetched<T>(results, false);
+  }
+
+  public List<T> getResults() {
+    return results;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return the results of fetched, or null if it is null
+   */
+  public static <T> List<T> resultsOf(Fetched<T> fetched) {
+    return fetched == null ? null : fetched.results;
+  }
+}
@@ -0,0 +1,126 @@
+package util.webservice.cache;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reflective access to the private fields of the bioasq client response classes, which have
+ * neither setters nor public constructors. Fields are looked up once per class and name.
+ */
+public class FieldAccess {
+
+  private static final Map<String, Field> fields = new ConcurrentHashMap<String, Field>();
+
+  private static Object unsafe;
+
+  private static Method allocateInstance;
+
+  public static Object get(Object target, String name) {
+    try {
+      return field(target.getClass(), name).get(target);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sets a field, converting numbers to the declared type of the field
+   */
+  public static void set(Object target, String name, Object value) {
+    Field f = field(target.getClass(), name);
+    try {
+      Class<?> type = f.getType();
+      if (value instanceof Number) {
+        Number n = (Number) value;
+        if (type == float.class || type == Float.class)
+          value = n.floatValue();
+        else if (type == double.class || type == Double.class)
+          value = n.doubleValue();
+        else if (type == int.class || type == Integer.class)
+          value = n.intValue();
+        else if (type == long.class || type == Long.class)
+          value = n.longValue();
+      }
+      if (value == null && type.isPrimitive())
+        return;
+      f.set(target, value);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the declared class of a field
+   */
+  public static Class<?> type(Class<?> c, String name) {
+    return field(c, name).getType();
+  }
+
+  /**
+   * @return the element class of a List field
+   */
+  public static Class<?> elementType(Class<?> c, String name) {
+    Type t = field(c, name).getGenericType();
+    if (t instanceof ParameterizedType) {
+      Type arg = ((ParameterizedType) t).getActualTypeArguments()[0];
+      if (arg instanceof Class)
+        return (Class<?>) arg;
+    }
+    return Object.class;
+  }
+
+  public static <T> T newInstance(Class<T> c) {
+    try {
+      Constructor<T> ctor = c.getDeclaredConstructor();
+      ctor.setAccessible(true);
+      return ctor.newInstance();
+    } catch (NoSuchMethodException e) {
+      return allocate(c);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Creates an instance without running a constructor, the way Gson and json-io do for classes
+   * without a no-arg constructor.
+   */
+  private static synchronized <T> T allocate(Class<T> c) {
+    try {
+      if (unsafe == null) {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field f = unsafeClass.getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        unsafe = f.get(null);
+        allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+      }
+      return c.cast(allocateInstance.invoke(unsafe, c));
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot instantiate " + c.getName(), e);
+    }
+  }
+
+  private static Field field(Class<?> c, String name) {
+    String key = c.getName() + "#" + name;
+    Field f = fields.get(key);
+    if (f == null) {
+      for (Class<?> k = c; k != null && f == null; k = k.getSuperclass()) {
+        try {
+          f = k.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+          // look in the superclass
+        }
+      }
+      if (f == null)
+        throw new IllegalArgumentException("No field " + name + " in " + c.getName());
+      f.setAccessible(true);
+      fields.put(key, f);
+    }
+    return f;
+  }
+}
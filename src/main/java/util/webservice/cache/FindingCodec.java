@@ -0,0 +1,73 @@
+package util.webservice.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse.Concept;
+import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse.Finding;
+
+/**
+ * Binary schema for ontology findings:
+ * concept (label, termId, uri), matchedLabel, ranges (begin, end), score.
+ */
+public class FindingCodec extends BinaryRecordCodec<Finding> {
+
+  private static final Class<?> RANGE = FieldAccess.elementType(Finding.class, "ranges");
+
+  @Override
+  public String getFormatName() {
+    return "bin";
+  }
+
+  @Override
+  protected int getSchemaVersion() {
+    return 1;
+  }
+
+  @Override
+  protected void write(RecordOutput out, Finding f) {
+    Object c = FieldAccess.get(f, "concept");
+    out.writeBoolean(c != null);
+    if (c != null) {
+      out.writeString(getString(c, "label"));
+      out.writeString(getString(c, "termId"));
+      out.writeString(getString(c, "uri"));
+    }
+    out.writeString(getString(f, "matchedLabel"));
+    List<?> ranges = getList(f, "ranges");
+    out.writeSize(ranges == null ? -1 : ranges.size());
+    if (ranges != null) {
+      for (Object r : ranges) {
+        out.writeVarint(((Number) FieldAccess.get(r, "begin")).intValue());
+        out.writeVarint(((Number) FieldAccess.get(r, "end")).intValue());
+      }
+    }
+    out.writeDouble(getDouble(f, "score"));
+  }
+
+  @Override
+  protected Finding read(RecordInput in) {
+    Finding f = FieldAccess.newInstance(Finding.class);
+    if (in.readBoolean()) {
+      Concept c = FieldAccess.newInstance(Concept.class);
+      FieldAccess.set(c, "label", in.readString());
+      FieldAccess.set(c, "termId", in.readString());
+      FieldAccess.set(c, "uri", in.readString());
+      FieldAccess.set(f, "concept", c);
+    }
+    FieldAccess.set(f, "matchedLabel", in.readString());
+    int size = in.readSize();
+    if (size >= 0) {
+      List<Object> ranges = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++) {
+        Object r = FieldAccess.newInstance(RANGE);
+        FieldAccess.set(r, "begin", in.readVarint());
+        FieldAccess.set(r, "end", in.readVarint());
+        ranges.add(r);
+      }
+      FieldAccess.set(f, "ranges", ranges);
+    }
+    FieldAccess.set(f, "score", in.readDouble());
+    return f;
+  }
+}
@@ -0,0 +1,149 @@
+package util.webservice.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The key indexes of all segment stores in a cache directory, saved to one file (index.snapshot)
+ * when a run ends so that the next run can load them with one read instead of reading an index
+ * file per store. A snapshot holds only the newest record of each key. The part of each store is
+ * used only if the store's segment and index files have the same sizes and modification times as
+ * when the snapshot was taken; otherwise that store reads its index file as usual.
+ *
+ * File: [int magic][int version][int storeCount] then storeCount times [int nameLength][name
+ * bytes][int length][long segmentSize][long segmentModified][long indexSize][long
+ * indexModified][index records], with index records as in the index file of a
+ * {@link SegmentStore}.
+ */
+public class IndexSnapshot {
+
+  public static final String fileName = "index.snapshot";
+
+  private static final int MAGIC = 0x53534e50;
+
+  private static final int VERSION = 1;
+
+  /**
+   * Part of each store, by segment file name
+   */
+  private final Map<String, ByteBuffer> parts;
+
+  private IndexSnapshot(Map<String, ByteBuffer> parts) {
+    this.parts = parts;
+  }
+
+  /**
+   * @return the snapshot of the cache directory, or null if there is none or it cannot be read
+   */
+  public static IndexSnapshot read(String cachePath) {
+    File file = new File(cachePath, fileName);
+    if (!file.exists())
+      return null;
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+        return null;
+      Map<String, ByteBuffer> parts = new HashMap<String, ByteBuffer>();
+      for (int i = buf.getInt(); i > 0; i--) {
+        byte[] name = new byte[buf.getInt()];
+        buf.get(name);
+        int length = buf.getInt();
+        ByteBuffer part = buf.slice();
+        part.limit(length);
+        buf.position(buf.position() + length);
+        parts.put(new String(name, StandardCharsets.UTF_8), part);
+      }
+      return new IndexSnapshot(parts);
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Exception: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Hands each store its part of the snapshot, to be used when it is opened
+   *
+   * @param caches caches whose stores to prepare; must not be open yet
+   * @param stores other stores to prepare
+   * @return number of stores that have a part
+   */
+  public int apply(Collection<? extends ResultCache<?>> caches, Collection<SegmentStore> stores) {
+    int n = 0;
+    for (SegmentStore store : storesOf(caches, stores)) {
+      ByteBuffer part = parts.get(store.getName());
+      if (part != null) {
+        store.setSnapshot(part);
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Writes the pending entries of the caches, then a snapshot of all open stores. The file is
+   * replaced atomically, so a run that starts meanwhile reads either the old or the new one.
+   */
+  public static void write(String cachePath, Collection<? extends ResultCache<?>> caches,
+          Collection<SegmentStore> stores) throws IOException {
+    for (ResultCache<?> cache : caches) {
+      cache.flush();
+    }
+    List<SegmentStore> open = new ArrayList<SegmentStore>();
+    for (SegmentStore store : storesOf(caches, stores)) {
+      if (store.isOpen())
+        open.add(store);
+    }
+    File file = new File(cachePath, fileName);
+    File tmp = File.createTempFile(fileName, ".tmp", file.getParentFile());
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(open.size());
+        for (SegmentStore store : open) {
+          ByteArrayOutputStream part = new ByteArrayOutputStream();
+          store.writeSnapshot(new DataOutputStream(part));
+          byte[] name = store.getName().getBytes(StandardCharsets.UTF_8);
+          out.writeInt(name.length);
+          out.write(name);
+          out.writeInt(part.size());
+          part.writeTo(out);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  public static void delete(String cachePath) {
+    new File(cachePath, fileName).delete();
+  }
+
+  private static List<SegmentStore> storesOf(Collection<? extends ResultCache<?>> caches,
+          Collection<SegmentStore> stores) {
+    List<SegmentStore> all = new ArrayList<SegmentStore>();
+    for (ResultCache<?> cache : caches) {
+      all.addAll(cache.getStores());
+    }
+    all.addAll(stores);
+    return all;
+  }
+}
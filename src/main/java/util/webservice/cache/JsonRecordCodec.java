@@ -0,0 +1,58 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cedarsoftware.util.io.JsonReader;
+import com.cedarsoftware.util.io.JsonWriter;
+
+/**
+ * Stores each result as one json-io line, the same text the old per-query cache files held.
+ * Payload: [int count] then count times [int length][UTF-8 json].
+ *
+ * @param <T> the type of a single cached result
+ */
+public class JsonRecordCodec<T> implements RecordCodec<T> {
+
+  /**
+   * Rewrites 2014 years/MeSH versions to 2012 when decoding, as the old cache reader did
+   */
+  public boolean APPLY_YEAR_CHANGE_HACK = true;
+
+  @Override
+  public byte[] encode(List<T> results) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    for (T result : results) {
+      lines.add(JsonWriter.objectToJson(result));
+    }
+    return Payloads.encodeStrings(lines);
+  }
+
+  /**
+   * The old cache files already hold json-io lines, so they are stored as they are.
+   */
+  @Override
+  public byte[] importLegacy(List<String> jsonLines) throws IOException {
+    return Payloads.encodeStrings(jsonLines);
+  }
+
+  @Override
+  public String getFormatName() {
+    return "json";
+  }
+
+  @Override
+  public List<T> decode(ByteBuffer payload) throws IOException {
+    List<T> results = new ArrayList<T>();
+    for (String line : Payloads.decodeStrings(payload)) {
+      @SuppressWarnings("unchecked")
+      T t = (T) JsonReader.jsonToJava(APPLY_YEAR_CHANGE_HACK ? LegacyCacheImporter
+              .applyYearChangeHack(line) : line);
+      if (t != null)
+        results.add(t);
+    }
+    return results;
+  }
+}
@@ -0,0 +1,138 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * One-time import of the old cache layout, where every miss was written to its own UUID-named
+ * .txt file: the query on the first line, then one json-io line per result ("null" for an empty
+ * result), into a segment store.
+ */
+public class LegacyCacheImporter {
+
+  /**
+   * Imports the old .txt files of a directory. Every query also gets {@link EntryMetadata}: it was fetched when the file its results come
+   * from was last modified, and stays valid for the time to live of its kind of result (empty or
+   * not).
+   *
+   * @param dir directory holding the old .txt files
+   * @param store the store to append to
+   * @param metadata the store of entry metadata to append to
+   * @param codec turns the json lines of a query into the payload to store
+   * @param timeToLive milliseconds non-empty results stay valid, -1 for ever
+   * @param negativeTimeToLive milliseconds empty results stay valid, -1 for ever
+   * @return number of queries imported
+   */
+  public static int importDirectory(String dir, SegmentStore store, SegmentStore metadata,
+          RecordCodec<?> codec, long timeToLive, long negativeTimeToLive) throws IOException {
+    Map<String, Long> modified = new HashMap<String, Long>();
+    Map<String, List<String>> queries = readDirectory(dir, modified);
+    for (Map.Entry<String, List<String>> e : queries.entrySet()) {
+      long ttl = e.getValue().isEmpty() ? negativeTimeToLive : timeToLive;
+      metadata.put(e.getKey(), new EntryMetadata(modified.get(e.getKey()), ttl, null).encode());
+      store.put(e.getKey(), codec.importLegacy(e.getValue()));
+    }
+    return queries.size();
+  }
+
+  /**
+   * Reads all old cache files of a directory. Repeated runs wrote one file per miss, so the same
+   * query can have several files; they are merged with {@link #merge}.
+   *
+   * @return query -> json lines of its results
+   */
+  public static Map<String, List<String>> readDirectory(String dir) throws IOException {
+    return readDirectory(dir, null);
+  }
+
+  /**
+   * @param modified if not null, receives query -> modification time of the file its results come
+   *          from
+   */
+  private static Map<String, List<String>> readDirectory(String dir, Map<String, Long> modified)
+          throws IOException {
+    Map<String, List<String>> queries = new LinkedHashMap<String, List<String>>();
+    Path path = Paths.get(dir);
+    if (!Files.isDirectory(path))
+      return queries;
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(path)) {
+      files = walk.filter(Files::isRegularFile).filter(p -> p.toString().endsWith(".txt"))
+              .sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (lines.isEmpty())
+        continue;
+      if (merge(queries, lines.get(0), resultLines(lines)) && modified != null)
+        modified.put(lines.get(0), Files.getLastModifiedTime(file).toMillis());
+    }
+    return queries;
+  }
+
+  /**
+   * Adds the lines of one old cache file to queries
+   *
+   * @return false if the file was empty
+   */
+  public static boolean addFile(Map<String, List<String>> queries, List<String> lines) {
+    if (lines.isEmpty())
+      return false;
+    merge(queries, lines.get(0), resultLines(lines));
+    return true;
+  }
+
+  /**
+   * Keeps whichever of the existing and the new results of a query is larger, so a null marker
+   * left by a failed call never hides real results.
+   *
+   * @return whether the new results were kept
+   */
+  public static boolean merge(Map<String, List<String>> queries, String query,
+          List<String> results) {
+    List<String> existing = queries.get(query);
+    if (existing != null && existing.size() >= results.size())
+      return false;
+    queries.put(query, results);
+    return true;
+  }
+
+  /**
+   * @return the json lines of an old cache file, without the query line and null markers
+   */
+  public static List<String> resultLines(List<String> lines) {
+    List<String> results = new ArrayList<String>();
+    for (String line : lines.subList(1, lines.size())) {
+      if (!line.trim().isEmpty() && !line.trim().equals("null"))
+        results.add(line);
+    }
+    return results;
+  }
+
+  /**
+   * The cache was built against 2014 data while the evaluation uses 2012 MeSH and years, so
+   * "year":"2014" and mesh/2014 are rewritten to 2012.
+   */
+  public static String applyYearChangeHack(String line) {
+    line = replace(line, "\"year\":\"2014\"", "\"year\":\"2012\"");
+    return replace(line, "mesh/2014", "mesh/2012");
+  }
+
+  private static String replace(String line, String target, String replacement) {
+    if (line.contains(target)) {
+      return line.replace(target, replacement);
+    } else {
+      return line;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package util.webservice.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Memory-budgeted tier of decoded cache entries in front of a segment store. Entries are weighed
+ * by an estimate of their heap size, derived from the size of their encoding, and the least
+ * recently used ones are evicted (per Guava cache segment) once the budget is exceeded.
+ *
+ * @param <V> type of a decoded entry
+ */
+public class MemoryTier<V> {
+
+  private static class Weighted<V> {
+    final V value;
+
+    final int weight;
+
+    Weighted(V value, int weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  private final Cache<String, Weighted<V>> cache;
+
+  /**
+   * @param budgetBytes approximate heap bytes to spend on decoded entries; negative for no limit
+   */
+  public MemoryTier(long budgetBytes) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (budgetBytes >= 0) {
+      builder.maximumWeight(budgetBytes).weigher(new Weigher<String, Weighted<V>>() {
+        @Override
+        public int weigh(String key, Weighted<V> value) {
+          return value.weight;
+        }
+      });
+    }
+    this.cache = builder.build();
+  }
+
+  /**
+   * @return the decoded entry for key, or null if it is not in memory
+   */
+  public V get(String key) {
+    Weighted<V> w = cache.getIfPresent(key);
+    return w == null ? null : w.value;
+  }
+
+  /**
+   * @param key
+   * @param value decoded entry
+   * @param encodedBytes size of the entry's encoding in the segment
+   */
+  public void put(String key, V value, int encodedBytes) {
+    cache.put(key, new Weighted<V>(value, approximateHeapBytes(key, encodedBytes)));
+  }
+
+  public void remove(String key) {
+    cache.invalidate(key);
+  }
+
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Decoded strings take two bytes per char, plus the headers of the objects and lists holding
+   * them; twice the encoded size plus a fixed overhead is close enough for budgeting.
+   */
+  static int approximateHeapBytes(String key, int encodedBytes) {
+    long bytes = 2L * encodedBytes + 2L * key.length() + 64;
+    return (int) Math.min(bytes, Integer.MAX_VALUE);
+  }
+}
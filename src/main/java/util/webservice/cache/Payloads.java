@@ -0,0 +1,40 @@
+package util.webservice.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for payloads that are a plain list of strings:
+ * [int count] then count times [int length][UTF-8 bytes].
+ */
+public class Payloads {
+
+  public static byte[] encodeStrings(List<String> strings) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      byte[] b = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(b.length);
+      out.write(b);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public static List<String> decodeStrings(ByteBuffer payload) {
+    int count = payload.getInt();
+    List<String> strings = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] b = new byte[payload.getInt()];
+      payload.get(b);
+      strings.add(new String(b, StandardCharsets.UTF_8));
+    }
+    return strings;
+  }
+}
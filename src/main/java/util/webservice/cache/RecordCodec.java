@@ -0,0 +1,30 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Turns the list of results cached for one key into a segment payload and back.
+ *
+ * @param <T> the type of a single cached result
+ */
+public interface RecordCodec<T> {
+
+  public byte[] encode(List<T> results) throws IOException;
+
+  public List<T> decode(ByteBuffer payload) throws IOException;
+
+  /**
+   * @param jsonLines json-io lines of one query from the old per-query cache files
+   * @return the payload to store for that query
+   */
+  public byte[] importLegacy(List<String> jsonLines) throws IOException;
+
+  /**
+   * @return short name of the payload format; part of the segment file name so that a change of
+   *         format starts a fresh segment instead of misreading an old one
+   */
+  public String getFormatName();
+
+}
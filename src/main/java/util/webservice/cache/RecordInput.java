@@ -0,0 +1,72 @@
+package util.webservice.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for records written by {@link RecordOutput}.
+ */
+public class RecordInput {
+
+  private final ByteBuffer in;
+
+  public RecordInput(ByteBuffer in) {
+    this.in = in;
+  }
+
+  public int readVarint() {
+    int v = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.get();
+      v |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return v;
+  }
+
+  public boolean readBoolean() {
+    return in.get() != 0;
+  }
+
+  public double readDouble() {
+    return in.getDouble();
+  }
+
+  public String readString() {
+    int length = readVarint() - 1;
+    if (length < 0)
+      return null;
+    String s;
+    if (in.hasArray()) {
+      s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+    } else {
+      byte[] b = new byte[length];
+      in.duplicate().get(b);
+      s = new String(b, StandardCharsets.UTF_8);
+    }
+    in.position(in.position() + length);
+    return s;
+  }
+
+  /**
+   * @return size of a list, or -1 for a null list
+   */
+  public int readSize() {
+    return readVarint() - 1;
+  }
+
+  public List<String> readStrings() {
+    int size = readSize();
+    if (size < 0)
+      return null;
+    List<String> strings = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(readString());
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,65 @@
+package util.webservice.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writer for binary cache records: unsigned LEB128 varints, length-prefixed UTF-8 strings and
+ * fixed 8-byte doubles. Nullable strings and lists are prefixed with length + 1, 0 meaning null.
+ */
+public class RecordOutput {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+  public void writeVarint(int v) {
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  public void writeBoolean(boolean b) {
+    out.write(b ? 1 : 0);
+  }
+
+  public void writeDouble(double d) {
+    long bits = Double.doubleToRawLongBits(d);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      out.write((int) (bits >>> shift));
+    }
+  }
+
+  public void writeString(String s) {
+    if (s == null) {
+      writeVarint(0);
+      return;
+    }
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(b.length + 1);
+    out.write(b, 0, b.length);
+  }
+
+  /**
+   * @param size size of a list, or -1 for a null list
+   */
+  public void writeSize(int size) {
+    writeVarint(size + 1);
+  }
+
+  public void writeStrings(List<String> strings) {
+    if (strings == null) {
+      writeSize(-1);
+      return;
+    }
+    writeSize(strings.size());
+    for (String s : strings) {
+      writeString(s);
+    }
+  }
+
+  public byte[] toByteArray() {
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,574 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Persistent cache for one kind of service response (findings, entities, documents, snippets).
+ * In lazy mode only the key index is loaded when the cache is opened; the results for a key are
+ * decoded from the memory-mapped segment on first use and kept in a memory-budgeted tier of
+ * decoded lists (see {@link MemoryTier}).
+ * Otherwise every entry is decoded up front and kept on heap, as the old cache did.
+ * Every entry written by the cache carries {@link EntryMetadata}; an entry older than the time to
+ * live for its kind of result (empty or not) is treated as a miss and fetched again.
+ * In write-behind mode new entries are served from memory until the {@link WriteBehind} writer
+ * has appended them to the segment, so the caller does not wait for the disk.
+ * In shared mode other processes use the same cache directory at the same time: a miss first
+ * reads what they have written since (see {@link SegmentStore#refresh()}), so that a query one of
+ * them has fetched and written is not fetched again. A process about to fetch a key claims it by
+ * creating a marker file in the claims directory (<name>.claims) and deletes it once the entry is
+ * written; a process that finds the key claimed polls the stores until the entry shows up or the
+ * claim goes away, so concurrent misses across processes fetch once. No lock is held while
+ * fetching, and a claim older than CLAIM_TIMEOUT_MS, e.g. of a process that died, is taken over.
+ * A cache is safe to share between CPE processing threads. Lookups are counted in its
+ * {@link CacheStatistics}.
+ *
+ * @param <T> the type of a single cached result
+ */
+public class ResultCache<T> implements WriteBehind.Target {
+
+  /**
+   * Milliseconds after which a claim on a key is considered abandoned in shared mode
+   */
+  public static long CLAIM_TIMEOUT_MS = 60 * 1000;
+
+  /**
+   * Milliseconds between looks at the stores while another process fetches a key in shared mode
+   */
+  public static long CLAIM_POLL_MS = 50;
+
+  protected final String name;
+
+  protected final String cachePath;
+
+  protected final SegmentStore store;
+
+  /**
+   * {@link EntryMetadata} of each key
+   */
+  protected final SegmentStore metadata;
+
+  protected final RecordCodec<T> codec;
+
+  private final boolean lazy;
+
+  private long timeToLive = -1;
+
+  private long negativeTimeToLive = -1;
+
+  private long partialTimeToLive = 0;
+
+  /**
+   * Decoded results of recently used keys
+   */
+  private final MemoryTier<List<T>> decoded;
+
+  private final CacheStatistics statistics = new CacheStatistics(this);
+
+  /**
+   * An entry put in write-behind mode that has not been written yet
+   */
+  private static class Pending<T> {
+    final List<T> results;
+
+    final EntryMetadata metadata;
+
+    Pending(List<T> results, EntryMetadata metadata) {
+      this.results = results;
+      this.metadata = metadata;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Pending<T>> pending =
+          new ConcurrentHashMap<String, Pending<T>>();
+
+  private volatile boolean writeBehind = false;
+
+  private volatile boolean shared = false;
+
+  /**
+   * Remote calls currently running for missed keys
+   */
+  private final ConcurrentHashMap<String, CompletableFuture<List<T>>> inFlight =
+          new ConcurrentHashMap<String, CompletableFuture<List<T>>>();
+
+  /**
+   * Marker files of the keys this process has claimed in shared mode and not written yet
+   */
+  private final ConcurrentHashMap<String, Path> claims = new ConcurrentHashMap<String, Path>();
+
+  /**
+   * @param cachePath directory the segment files live in
+   * @param name kind of response; also the name of the directory of the old per-query files
+   * @param codec
+   * @param lazy whether to decode entries on first use instead of when the cache is opened
+   * @param memoryBudget approximate heap bytes for decoded entries in lazy mode
+   */
+  public ResultCache(String cachePath, String name, RecordCodec<T> codec, boolean lazy,
+          long memoryBudget) {
+    this.name = name;
+    this.cachePath = cachePath;
+    this.store = new SegmentStore(cachePath, name + "." + codec.getFormatName());
+    this.metadata = new SegmentStore(cachePath, name + ".meta");
+    this.codec = codec;
+    this.lazy = lazy;
+    this.decoded = new MemoryTier<List<T>>(lazy ? memoryBudget : -1);
+  }
+
+  /**
+   * Opens the segment. The very first time, the old per-query files of this kind are imported, by
+   * one process only if several open the cache at once.
+   */
+  public void open() throws IOException {
+    long start = System.currentTimeMillis();
+    store.open();
+    metadata.open();
+    if (store.isEmpty()) {
+      try (FileLock lock = store.lockImport()) {
+        // another process may have imported them while this one waited for the lock
+        store.refresh();
+        if (store.isEmpty()) {
+          int n = LegacyCacheImporter.importDirectory(cachePath + name, store, metadata, codec,
+                  timeToLive, negativeTimeToLive);
+          if (n > 0)
+            System.out.println("Imported " + n + " cached " + name + " queries into "
+                    + store.getPath());
+        }
+      }
+    }
+    if (!lazy) {
+      for (String key : store.keySet()) {
+        decode(key);
+      }
+    }
+    statistics.setLoadTimeMillis(System.currentTimeMillis() - start);
+    CacheStatistics.register(statistics);
+  }
+
+  public void close() throws IOException {
+    CacheStatistics.unregister(statistics);
+    flush();
+    store.close();
+    metadata.close();
+  }
+
+  /**
+   * @return size of the files of this cache kind
+   */
+  public long bytesOnDisk() throws IOException {
+    return store.bytesOnDisk() + metadata.bytesOnDisk();
+  }
+
+  /**
+   * @return the segment stores this cache keeps its entries in
+   */
+  public List<SegmentStore> getStores() {
+    List<SegmentStore> stores = new ArrayList<SegmentStore>();
+    stores.add(store);
+    stores.add(metadata);
+    return stores;
+  }
+
+  public CacheStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @param writeBehind whether put leaves the writing to the {@link WriteBehind} writer
+   */
+  public void setWriteBehind(boolean writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * @param shared whether other processes use the same cache directory at the same time
+   */
+  public void setShared(boolean shared) {
+    this.shared = shared;
+  }
+
+  /**
+   * @param timeToLive milliseconds non-empty results stay valid, -1 for ever
+   * @param negativeTimeToLive milliseconds empty results stay valid, -1 for ever
+   */
+  public void setTimeToLive(long timeToLive, long negativeTimeToLive) {
+    this.timeToLive = timeToLive;
+    this.negativeTimeToLive = negativeTimeToLive;
+  }
+
+  /**
+   * @param partialTimeToLive milliseconds incomplete results (see {@link Fetched}) stay valid, -1
+   *          for ever; 0 not to cache them at all
+   */
+  public void setPartialTimeToLive(long partialTimeToLive) {
+    this.partialTimeToLive = partialTimeToLive;
+  }
+
+  public boolean containsKey(String key) {
+    return store.contains(key) || pending.containsKey(key);
+  }
+
+  /**
+   * @param key
+   * @return the cached results for key, an empty list for a cached empty result, or null if key is
+   *         not cached, its entry has expired or could not be decoded
+   */
+  public List<T> get(String key) {
+    List<T> results = lookup(key);
+    if (results == null || isExpired(key, results.isEmpty()))
+      return null;
+    statistics.recordHit(results.isEmpty());
+    // callers sort and trim what they get back
+    return new ArrayList<T>(results);
+  }
+
+  /**
+   * @return the decoded entry of key whether it has expired or not, or null
+   */
+  private List<T> lookup(String key) {
+    // a pending entry replaces the one decoded before
+    Pending<T> p = pending.get(key);
+    if (p != null)
+      return p.results;
+    List<T> results = decoded.get(key);
+    return results != null ? results : decode(key);
+  }
+
+  /**
+   * @param key
+   * @param results
+   * @param source service endpoint the results were fetched from
+   */
+  public void put(String key, List<T> results, String source) {
+    put(key, results, source, results.isEmpty() ? negativeTimeToLive : timeToLive);
+  }
+
+  /**
+   * @param ttl milliseconds the entry stays valid, -1 for ever
+   */
+  private void put(String key, List<T> results, String source, long ttl) {
+    EntryMetadata meta = new EntryMetadata(System.currentTimeMillis(), ttl, source);
+    if (writeBehind) {
+      pending.put(key, new Pending<T>(new ArrayList<T>(results), meta));
+      decoded.remove(key);
+      WriteBehind.getInstance().schedule(this);
+      return;
+    }
+    try {
+      byte[] payload = codec.encode(results);
+      writeEncoded();
+      metadata.put(key, meta.encode());
+      store.put(key, payload);
+      decoded.put(key, new ArrayList<T>(results), payload.length);
+    } catch (Exception e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+    releaseClaim(key);
+  }
+
+  /**
+   * Writes the pending entries with one append to each store, then syncs the stores if
+   * {@link WriteBehind#SYNC} is set
+   *
+   * @return number of entries written
+   */
+  @Override
+  public synchronized int flush() throws IOException {
+    if (pending.isEmpty())
+      return 0;
+    Map<String, Pending<T>> batch = new HashMap<String, Pending<T>>(pending);
+    Map<String, byte[]> payloads = new LinkedHashMap<String, byte[]>();
+    Map<String, byte[]> metas = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, Pending<T>> e : batch.entrySet()) {
+      try {
+        payloads.put(e.getKey(), codec.encode(e.getValue().results));
+        metas.put(e.getKey(), e.getValue().metadata.encode());
+      } catch (Exception ex) {
+        System.out.println("Exception: " + ex.getMessage());
+      }
+    }
+    writeEncoded();
+    metadata.putAll(metas);
+    store.putAll(payloads);
+    if (WriteBehind.SYNC)
+      sync();
+    for (Map.Entry<String, Pending<T>> e : batch.entrySet()) {
+      byte[] payload = payloads.get(e.getKey());
+      if (payload != null)
+        decoded.put(e.getKey(), e.getValue().results, payload.length);
+      // unless it has been replaced in the meantime
+      pending.remove(e.getKey(), e.getValue());
+      releaseClaim(e.getKey());
+    }
+    return batch.size();
+  }
+
+  /**
+   * Writes what the codec has set aside while encoding entries, before the entries that refer to
+   * it are written
+   */
+  protected void writeEncoded() throws IOException {
+  }
+
+  /**
+   * Forces the stores of this cache to the disk
+   */
+  protected void sync() throws IOException {
+    store.force();
+    metadata.force();
+  }
+
+  /**
+   * @return the metadata of the entry of key, or null if it has none
+   */
+  public EntryMetadata getMetadata(String key) {
+    Pending<T> p = pending.get(key);
+    if (p != null)
+      return p.metadata;
+    try {
+      ByteBuffer b = metadata.get(key);
+      return b == null ? null : EntryMetadata.decode(b);
+    } catch (Exception e) {
+      System.out.println("Exception: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Entries without metadata were fetched at an unknown time; they are kept only as long as the
+   * time to live for their kind of result is unlimited. Entries imported from the old per-query
+   * files get metadata when they are imported, so only those of an older import have none.
+   */
+  private boolean isExpired(String key, boolean empty) {
+    EntryMetadata meta = getMetadata(key);
+    if (meta == null)
+      return (empty ? negativeTimeToLive : timeToLive) >= 0;
+    return meta.isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the cached results for key, calling fetcher on a miss and caching what it returns.
+   * Concurrent misses on the same key are coalesced: one caller runs fetcher while the others wait
+   * for and share its result, so a query is sent to the remote service only once.
+   *
+   * @param key
+   * @param source service endpoint fetcher calls, recorded with the entry
+   * @param fetcher the remote call to make on a miss; may return null if the call failed, in
+   *          which case nothing is cached
+   * @return the results for key; if fetcher failed, the expired entry of key or null
+   */
+  public List<T> getOrFetch(String key, String source, Supplier<List<T>> fetcher) {
+    return getOrFetchResult(key, source, () -> {
+      List<T> fetched = fetcher.get();
+      return fetched == null ? null : Fetched.complete(fetched);
+    });
+  }
+
+  /**
+   * Like {@link #getOrFetch(String, String, Supplier)}, for a fetcher that may get only part of
+   * the results. Those are returned, but cached only for the partial time to live.
+   */
+  public List<T> getOrFetchResult(String key, String source, Supplier<Fetched<T>> fetcher) {
+    List<T> results = get(key);
+    if (results != null)
+      return results;
+    CompletableFuture<List<T>> flight = new CompletableFuture<List<T>>();
+    CompletableFuture<List<T>> leader = inFlight.putIfAbsent(key, flight);
+    if (leader != null) {
+      statistics.recordCoalescedMiss();
+      results = await(leader);
+      return results == null ? null : new ArrayList<T>(results);
+    }
+    try {
+      // another caller may have finished fetching between the lookup and putIfAbsent
+      results = get(key);
+      if (results == null && shared) {
+        // or another process may have written it since the stores were last read; an entry it
+        // replaced must be decoded again
+        if (refresh())
+          decoded.remove(key);
+        results = get(key);
+        if (results == null)
+          results = claim(key);
+      }
+      if (results == null) {
+        long start = System.currentTimeMillis();
+        Fetched<T> fetched = fetcher.get();
+        statistics.recordMiss(System.currentTimeMillis() - start);
+        if (fetched == null) {
+          // serve an expired entry rather than nothing
+          results = lookup(key);
+          flight.complete(results);
+          return results == null ? null : new ArrayList<T>(results);
+        }
+        results = fetched.getResults();
+        if (fetched.isComplete())
+          put(key, results, source);
+        else if (partialTimeToLive != 0)
+          put(key, results, source, partialTimeToLive(results.isEmpty()));
+      }
+      flight.complete(results);
+      return new ArrayList<T>(results);
+    } catch (RuntimeException e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      // a pending entry keeps its claim until the writer has written it
+      if (!pending.containsKey(key))
+        releaseClaim(key);
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   * Claims key for this process, first waiting for another process that has claimed it to write
+   * its entry
+   *
+   * @return the entry another process has written meanwhile, or null once this process may fetch
+   */
+  private List<T> claim(String key) {
+    Path claim = Paths.get(cachePath, name + ".claims", Integer.toHexString(key.hashCode()));
+    while (true) {
+      try {
+        Files.createFile(claim);
+        claims.put(key, claim);
+        return null;
+      } catch (FileAlreadyExistsException e) {
+        // another process is fetching key
+      } catch (NoSuchFileException e) {
+        try {
+          Files.createDirectories(claim.getParent());
+        } catch (IOException ex) {
+          System.out.println("Exception: " + ex.getMessage());
+          return null;
+        }
+        continue;
+      } catch (IOException e) {
+        System.out.println("Exception: " + e.getMessage());
+        return null;
+      }
+      try {
+        if (System.currentTimeMillis() - Files.getLastModifiedTime(claim).toMillis()
+                > CLAIM_TIMEOUT_MS) {
+          Files.deleteIfExists(claim);
+          continue;
+        }
+        Thread.sleep(CLAIM_POLL_MS);
+      } catch (NoSuchFileException e) {
+        // released in the meantime
+      } catch (IOException e) {
+        System.out.println("Exception: " + e.getMessage());
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      if (refresh())
+        decoded.remove(key);
+      List<T> results = get(key);
+      if (results != null) {
+        statistics.recordCoalescedMiss();
+        return results;
+      }
+    }
+  }
+
+  private void releaseClaim(String key) {
+    Path claim = claims.remove(key);
+    if (claim == null)
+      return;
+    try {
+      Files.deleteIfExists(claim);
+    } catch (IOException e) {
+      System.out.println("Exception: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the partial time to live, unless results of the kind last shorter anyway
+   */
+  private long partialTimeToLive(boolean empty) {
+    long ttl = empty ? negativeTimeToLive : timeToLive;
+    return ttl >= 0 && ttl < partialTimeToLive ? ttl : partialTimeToLive;
+  }
+
+  /**
+   * Reads the entries other processes have added to the stores since they were last read
+   *
+   * @return true if there were any
+   */
+  public boolean refresh() {
+    try {
+      return metadata.refresh() | store.refresh();
+    } catch (IOException e) {
+      System.out.println("Exception: " + e.getMessage());
+      return false;
+    }
+  }
+
+  private List<T> await(CompletableFuture<List<T>> leader) {
+    try {
+      return leader.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Decodes the entry of key from the segment and adds it to the memory tier
+   */
+  private List<T> decode(String key) {
+    try {
+      ByteBuffer payload = store.get(key);
+      if (payload == null)
+        return null;
+      int encodedBytes = payload.remaining();
+      List<T> results = codec.decode(payload);
+      decoded.put(key, results, encodedBytes);
+      return results;
+    } catch (Exception e) {
+      System.out.println("Exception: " + e.getMessage());
+      return null;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public SegmentStore getStore() {
+    return store;
+  }
+
+  public SegmentStore getMetadataStore() {
+    return metadata;
+  }
+
+  /**
+   * Deletes the segment and index files of this cache kind.
+   */
+  public void clear() throws IOException {
+    pending.clear();
+    decoded.clear();
+    store.close();
+    store.delete();
+    metadata.delete();
+  }
+}
@@ -0,0 +1,60 @@
+package util.webservice.cache;
+
+import org.json.JSONObject;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Entity;
+import edu.cmu.lti.oaqa.bio.bioasq.services.OntologyServiceResponse.Finding;
+import edu.cmu.lti.oaqa.bio.bioasq.services.PubMedSearchServiceResponse.Document;
+
+/**
+ * Builds the cache of each kind of service response with the codec it is stored in, so that the
+ * cached proxy and the offline cache tools agree on the layout of the cache directory.
+ */
+public class ResultCacheFactory {
+
+  public static final String findings = "findings";
+
+  public static final String entities = "entities";
+
+  public static final String documents = "documents";
+
+  public static final String snippets = "snippets";
+
+  public static ResultCache<Finding> newFindingCache(String cachePath,
+          boolean applyYearChangeHack, boolean lazy, long memoryBudget) {
+    return new ResultCache<Finding>(cachePath, findings, binary(new FindingCodec(),
+            applyYearChangeHack), lazy, memoryBudget);
+  }
+
+  public static ResultCache<Entity> newEntityCache(String cachePath, boolean applyYearChangeHack,
+          boolean lazy, long memoryBudget) {
+    return new ResultCache<Entity>(cachePath, entities, binary(new EntityCodec(),
+            applyYearChangeHack), lazy, memoryBudget);
+  }
+
+  public static DocumentResultCache newDocumentCache(String cachePath,
+          boolean applyYearChangeHack, boolean lazy, long memoryBudget,
+          long bodyMemoryBudget) {
+    return new DocumentResultCache(cachePath, binary(new DocumentCodec(), applyYearChangeHack),
+            lazy, memoryBudget, bodyMemoryBudget);
+  }
+
+  /**
+   * Full texts from the Metal service stay json-io text since they are org.json objects
+   */
+  public static ResultCache<JSONObject> newFullTextCache(String cachePath,
+          boolean applyYearChangeHack, boolean lazy, long memoryBudget) {
+    JsonRecordCodec<JSONObject> codec = new JsonRecordCodec<JSONObject>();
+    codec.APPLY_YEAR_CHANGE_HACK = applyYearChangeHack;
+    return new ResultCache<JSONObject>(cachePath, snippets, codec, lazy, memoryBudget);
+  }
+
+  /**
+   * The year change is applied once, when the old json cache is converted
+   */
+  private static <T> BinaryRecordCodec<T> binary(BinaryRecordCodec<T> codec,
+          boolean applyYearChangeHack) {
+    codec.APPLY_YEAR_CHANGE_HACK = applyYearChangeHack;
+    return codec;
+  }
+}
@@ -0,0 +1,175 @@
+package util.webservice.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Full text sections kept off the heap: the sections of each document are stored as UTF-8 in one
+ * record of a memory-mapped {@link SegmentStore} keyed by PMID, and handed out as
+ * {@link Utf8CharSequence} views of the mapped segment. Nothing but the small per-document header
+ * is copied onto the heap when a document is read. In write-behind mode new records are served
+ * from memory until the {@link WriteBehind} writer has appended them, as in {@link ResultCache}.
+ *
+ * Record: [int sectionCount] then sectionCount times [int byteOffset][int byteLength][int
+ * charLength], then the UTF-8 bytes of all sections; offsets are relative to the start of the
+ * bytes.
+ */
+public class SectionStore implements WriteBehind.Target {
+
+  public static final String sections = "sections";
+
+  private final SegmentStore store;
+
+  /**
+   * Records put in write-behind mode that have not been written yet
+   */
+  private final ConcurrentHashMap<String, byte[]> pending = new ConcurrentHashMap<String, byte[]>();
+
+  private volatile boolean writeBehind = false;
+
+  public SectionStore(String cachePath) {
+    this.store = new SegmentStore(cachePath, sections + ".utf8");
+  }
+
+  public void open() throws IOException {
+    store.open();
+  }
+
+  public void close() throws IOException {
+    flush();
+    store.close();
+  }
+
+  public void delete() throws IOException {
+    pending.clear();
+    store.delete();
+  }
+
+  public boolean contains(String pmid) {
+    return pending.containsKey(pmid) || store.contains(pmid);
+  }
+
+  /**
+   * @param writeBehind whether put leaves the writing to the {@link WriteBehind} writer
+   */
+  public void setWriteBehind(boolean writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  public SegmentStore getStore() {
+    return store;
+  }
+
+  /**
+   * The sections of one document, encoded to UTF-8 one by one as they come in
+   */
+  public static class Sections {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final List<int[]> headers = new ArrayList<int[]>();
+
+    public void add(CharSequence text) {
+      byte[] b = text.toString().getBytes(StandardCharsets.UTF_8);
+      headers.add(new int[] { bytes.size(), b.length, text.length() });
+      bytes.write(b, 0, b.length);
+    }
+
+    public int size() {
+      return headers.size();
+    }
+  }
+
+  /**
+   * Stores the sections of a document, replacing those stored before
+   */
+  public void put(String pmid, List<? extends CharSequence> texts) throws IOException {
+    Sections sections = new Sections();
+    for (CharSequence text : texts) {
+      sections.add(text);
+    }
+    put(pmid, sections);
+  }
+
+  public void put(String pmid, Sections sections) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(4 + 12 * sections.size() + sections.bytes.size());
+    record.putInt(sections.size());
+    for (int[] header : sections.headers) {
+      record.putInt(header[0]).putInt(header[1]).putInt(header[2]);
+    }
+    record.put(sections.bytes.toByteArray());
+    if (writeBehind) {
+      pending.put(pmid, record.array());
+      WriteBehind.getInstance().schedule(this);
+    } else {
+      store.put(pmid, record.array());
+    }
+  }
+
+  /**
+   * Writes the pending records with one append, then syncs the store if {@link WriteBehind#SYNC}
+   * is set
+   *
+   * @return number of records written
+   */
+  @Override
+  public synchronized int flush() throws IOException {
+    if (pending.isEmpty())
+      return 0;
+    Map<String, byte[]> batch = new HashMap<String, byte[]>(pending);
+    store.putAll(batch);
+    if (WriteBehind.SYNC)
+      store.force();
+    for (Map.Entry<String, byte[]> e : batch.entrySet()) {
+      // unless it has been replaced in the meantime
+      pending.remove(e.getKey(), e.getValue());
+    }
+    return batch.size();
+  }
+
+  private ByteBuffer record(String pmid) throws IOException {
+    byte[] p = pending.get(pmid);
+    return p != null ? ByteBuffer.wrap(p) : store.get(pmid);
+  }
+
+  /**
+   * @return views of the sections of the document in order, or null if it is not stored
+   */
+  public List<CharSequence> get(String pmid) throws IOException {
+    ByteBuffer record = record(pmid);
+    if (record == null)
+      return null;
+    int count = record.getInt(0);
+    int textStart = 4 + 12 * count;
+    List<CharSequence> texts = new ArrayList<CharSequence>(count);
+    for (int i = 0; i < count; i++) {
+      texts.add(section(record, textStart, i));
+    }
+    return texts;
+  }
+
+  /**
+   * @return a view of section i of the document, or null if there is no such section
+   */
+  public CharSequence get(String pmid, int i) throws IOException {
+    ByteBuffer record = record(pmid);
+    if (record == null || i < 0 || i >= record.getInt(0))
+      return null;
+    return section(record, 4 + 12 * record.getInt(0), i);
+  }
+
+  private static CharSequence section(ByteBuffer record, int textStart, int i) {
+    int header = 4 + 12 * i;
+    ByteBuffer view = record.duplicate();
+    view.position(textStart + record.getInt(header));
+    view.limit(view.position() + record.getInt(header + 4));
+    return new Utf8CharSequence(view, record.getInt(header + 8));
+  }
+}
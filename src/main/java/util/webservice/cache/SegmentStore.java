@@ -0,0 +1,479 @@
+package util.webservice.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Append-only, log-structured store of byte payloads keyed by string. Every kind of cached
+ * service response lives in one segment file (<name>.seg) and a compact index file (<name>.idx)
+ * which maps each key to the offset of its newest payload in the segment. Opening the store only
+ * reads the index; payloads are served as read-only views of the memory-mapped segment.
+ *
+ * Segment record: [int keyLength][key bytes][int payloadLength][payload bytes]
+ *
+ * Index record: [int keyLength][key bytes][long payloadOffset][int payloadLength]
+ *
+ * Several processes may share a store. Appends are serialized by a lock on the lock file
+ * (<name>.seg.lock), and a payload is always written before its index record, so a complete index
+ * record always points at a complete payload. A lookup of a key that is not in the index first
+ * reads the index records other processes have appended since (see {@link #refresh()}), so their
+ * entries become visible without reopening the store. Compaction must not run while other
+ * processes have the store open.
+ *
+ * The index can also be loaded from an {@link IndexSnapshot} taken when the store was last used,
+ * which holds only the newest record of each key, as long as neither file has changed since.
+ */
+public class SegmentStore {
+
+  private final File segmentFile;
+
+  private final File indexFile;
+
+  private final File lockFile;
+
+  private final Map<String, Location> index = new HashMap<String, Location>();
+
+  private FileChannel segment;
+
+  private FileChannel indexOut;
+
+  private FileChannel lockChannel;
+
+  /**
+   * Bytes of the index file read into the index so far
+   */
+  private long indexRead;
+
+  private MappedByteBuffer mapped;
+
+  /**
+   * This store's part of an {@link IndexSnapshot}, for the next {@link #open()}
+   */
+  private ByteBuffer snapshot;
+
+  /**
+   * Where the newest payload for a key lives in the segment
+   */
+  public static class Location {
+    public final long offset;
+
+    public final int length;
+
+    public Location(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  public SegmentStore(String directory, String name) {
+    this(new File(directory, name + ".seg"), new File(directory, name + ".idx"));
+  }
+
+  private SegmentStore(File segmentFile, File indexFile) {
+    this.segmentFile = segmentFile;
+    this.indexFile = indexFile;
+    this.lockFile = new File(segmentFile.getPath() + ".lock");
+  }
+
+  /**
+   * Opens (creating if necessary) the segment and loads the key index. If the index is missing or
+   * does not cover the whole segment, e.g. after a crash between the two appends, it is rebuilt by
+   * scanning the record headers of the segment.
+   */
+  public synchronized void open() throws IOException {
+    segmentFile.getParentFile().mkdirs();
+    lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    // no other process may be appending while the index is checked against the segment
+    try (FileLock lock = lockAppends()) {
+      segment = FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long indexedEnd = snapshot != null ? loadSnapshot(snapshot) : -1;
+      snapshot = null;
+      if (indexedEnd < 0)
+        indexedEnd = loadIndex();
+      if (indexedEnd != segment.size()) {
+        System.out.println("Rebuilding cache index " + indexFile.getName());
+        rebuildIndex();
+      }
+      indexOut = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    remap();
+  }
+
+  public synchronized void close() throws IOException {
+    if (lockChannel != null) {
+      lockChannel.close();
+      lockChannel = null;
+    }
+    if (segment != null) {
+      segment.close();
+      segment = null;
+    }
+    if (indexOut != null) {
+      indexOut.close();
+      indexOut = null;
+    }
+    mapped = null;
+  }
+
+  /**
+   * @return true if the segment has no records at all
+   */
+  public synchronized boolean isEmpty() {
+    return index.isEmpty();
+  }
+
+  public synchronized boolean contains(String key) {
+    return index.containsKey(key);
+  }
+
+  public synchronized Set<String> keySet() {
+    return new HashSet<String>(index.keySet());
+  }
+
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * @return size of the segment file on disk in bytes
+   */
+  public synchronized long bytesOnDisk() throws IOException {
+    return segment.size();
+  }
+
+  /**
+   * @return bytes of the segment taken up by records still reachable through the index
+   */
+  public synchronized long liveBytes() {
+    long live = 0;
+    for (Map.Entry<String, Location> e : index.entrySet()) {
+      live += 8 + e.getKey().getBytes(StandardCharsets.UTF_8).length + e.getValue().length;
+    }
+    return live;
+  }
+
+  /**
+   * Rewrites the segment so that it holds only the newest record of each of the given keys, then
+   * swaps the new segment and index in place of the old ones.
+   *
+   * @param keep keys to keep; all other records are dropped
+   * @return number of bytes reclaimed
+   */
+  public synchronized long compact(Collection<String> keep) throws IOException {
+    long before = segment.size();
+    File tmpSegment = new File(segmentFile.getPath() + ".tmp");
+    File tmpIndex = new File(indexFile.getPath() + ".tmp");
+    tmpSegment.delete();
+    tmpIndex.delete();
+    SegmentStore out = new SegmentStore(tmpSegment, tmpIndex);
+    out.open();
+    for (String key : new TreeSet<String>(keep)) {
+      ByteBuffer payload = get(key);
+      if (payload == null)
+        continue;
+      byte[] b = new byte[payload.remaining()];
+      payload.get(b);
+      out.put(key, b);
+    }
+    out.segment.force(true);
+    out.close();
+    out.lockFile.delete();
+    close();
+    Files.move(tmpSegment.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    open();
+    return before - segment.size();
+  }
+
+  /**
+   * @param key
+   * @return a read-only view of the newest payload stored for key, or null if there is none
+   */
+  public synchronized ByteBuffer get(String key) throws IOException {
+    Location loc = index.get(key);
+    // another process may have added it
+    if (loc == null && refresh())
+      loc = index.get(key);
+    if (loc == null)
+      return null;
+    if (loc.offset + loc.length > mapped.capacity())
+      remap();
+    ByteBuffer view = mapped.duplicate();
+    view.position((int) loc.offset);
+    view.limit((int) loc.offset + loc.length);
+    return view.slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Appends a new payload for key. Older payloads for the same key stay in the segment but are no
+   * longer reachable through the index.
+   */
+  public synchronized void put(String key, byte[] payload) throws IOException {
+    putAll(Collections.singletonMap(key, payload));
+  }
+
+  /**
+   * Appends the payloads of several keys with one write to the segment and one to the index
+   */
+  public synchronized void putAll(Map<String, byte[]> payloads) throws IOException {
+    if (payloads.isEmpty())
+      return;
+    try (FileLock lock = lockAppends()) {
+      // the records other processes appended come first
+      refresh();
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      ByteArrayOutputStream indexRecords = new ByteArrayOutputStream();
+      Map<String, Location> added = new HashMap<String, Location>();
+      long start = segment.size();
+      for (Map.Entry<String, byte[]> e : payloads.entrySet()) {
+        byte[] k = e.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = e.getValue();
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeInt(k.length);
+        out.write(k);
+        out.writeInt(payload.length);
+        long payloadOffset = start + records.size();
+        out.write(payload);
+        indexRecords.write(indexRecord(k, payloadOffset, payload.length).array());
+        added.put(e.getKey(), new Location(payloadOffset, payload.length));
+      }
+      ByteBuffer record = ByteBuffer.wrap(records.toByteArray());
+      segment.position(start);
+      while (record.hasRemaining())
+        segment.write(record);
+      ByteBuffer indexRecord = ByteBuffer.wrap(indexRecords.toByteArray());
+      while (indexRecord.hasRemaining())
+        indexOut.write(indexRecord);
+      indexRead += indexRecords.size();
+      index.putAll(added);
+    }
+  }
+
+  /**
+   * Forces everything appended so far to the disk
+   */
+  public synchronized void force() throws IOException {
+    segment.force(false);
+    indexOut.force(false);
+  }
+
+  /**
+   * Reads the index records other processes have appended since the index was last read
+   *
+   * @return true if there were any
+   */
+  public synchronized boolean refresh() throws IOException {
+    if (segment == null || indexFile.length() <= indexRead)
+      return false;
+    readIndex();
+    return true;
+  }
+
+  /**
+   * @param snapshot what {@link #writeSnapshot(DataOutput)} wrote, to be used by the next open()
+   *          instead of the index file if it is still current
+   */
+  synchronized void setSnapshot(ByteBuffer snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Writes the sizes and modification times of both files, then one index record for each key.
+   * Records appended by other processes are read first, so that the index covers the files.
+   */
+  synchronized void writeSnapshot(DataOutput out) throws IOException {
+    try (FileLock lock = lockAppends()) {
+      refresh();
+      out.writeLong(segment.size());
+      out.writeLong(segmentFile.lastModified());
+      out.writeLong(indexRead);
+      out.writeLong(indexFile.lastModified());
+      for (Map.Entry<String, Location> e : index.entrySet()) {
+        out.write(indexRecord(e.getKey().getBytes(StandardCharsets.UTF_8),
+                e.getValue().offset, e.getValue().length).array());
+      }
+    }
+  }
+
+  /**
+   * @return whether the store has been opened and not closed since
+   */
+  synchronized boolean isOpen() {
+    return lockChannel != null;
+  }
+
+  /**
+   * @return name of the segment file, which tells the store apart from the others in its directory
+   */
+  public String getName() {
+    return segmentFile.getName();
+  }
+
+  /**
+   * Byte 0 of the lock file guards appends
+   */
+  private FileLock lockAppends() throws IOException {
+    return lockChannel.lock(0, 1, false);
+  }
+
+  /**
+   * Byte 1 of the lock file guards the one-time import of the old cache files, which appends
+   * while holding it
+   */
+  FileLock lockImport() throws IOException {
+    return lockChannel.lock(1, 1, false);
+  }
+
+  private ByteBuffer indexRecord(byte[] k, long offset, int length) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + k.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(k.length);
+    out.write(k);
+    out.writeLong(offset);
+    out.writeInt(length);
+    out.close();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  /**
+   * @return the end offset of the last complete record covered by the index
+   */
+  private long loadIndex() throws IOException {
+    index.clear();
+    indexRead = 0;
+    if (!indexFile.exists() || indexFile.length() == 0)
+      return 0;
+    return readIndex();
+  }
+
+  /**
+   * Loads the index from this store's part of a snapshot
+   *
+   * @return the end of the segment, or -1 if either file has changed since the snapshot was taken
+   */
+  private long loadSnapshot(ByteBuffer buf) throws IOException {
+    buf = buf.duplicate();
+    long segmentSize = buf.getLong();
+    long segmentModified = buf.getLong();
+    long indexSize = buf.getLong();
+    long indexModified = buf.getLong();
+    if (segmentSize != segment.size() || segmentModified != segmentFile.lastModified()
+            || indexSize != indexFile.length() || indexModified != indexFile.lastModified())
+      return -1;
+    index.clear();
+    readIndexRecords(buf);
+    indexRead = indexSize;
+    return segmentSize;
+  }
+
+  /**
+   * Reads the complete index records after the first indexRead bytes of the index file
+   *
+   * @return the end offset of the last payload they point at
+   */
+  private long readIndex() throws IOException {
+    try (FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, indexRead, ch.size()
+              - indexRead);
+      long end = readIndexRecords(buf);
+      indexRead += buf.position();
+      return end;
+    }
+  }
+
+  /**
+   * Adds the complete index records in buf to the index. buf is left after the last of them.
+   *
+   * @return the end offset of the last payload they point at
+   */
+  private long readIndexRecords(ByteBuffer buf) {
+    long end = 0;
+    while (buf.remaining() >= 4) {
+      int keyLength = buf.getInt(buf.position());
+      if (keyLength < 0 || buf.remaining() < 16 + keyLength)
+        break;
+      buf.getInt();
+      byte[] k = new byte[keyLength];
+      buf.get(k);
+      long offset = buf.getLong();
+      int length = buf.getInt();
+      index.put(new String(k, StandardCharsets.UTF_8), new Location(offset, length));
+      end = Math.max(end, offset + length);
+    }
+    return end;
+  }
+
+  /**
+   * Scans the segment record by record and rewrites the index file from scratch. A truncated
+   * record at the tail of the segment is cut off.
+   */
+  private void rebuildIndex() throws IOException {
+    index.clear();
+    long size = segment.size();
+    MappedByteBuffer buf = segment.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    long validEnd = 0;
+    try (FileChannel out = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buf.remaining() >= 4) {
+        int keyLength = buf.getInt();
+        if (keyLength < 0 || buf.remaining() < keyLength + 4)
+          break;
+        byte[] k = new byte[keyLength];
+        buf.get(k);
+        int length = buf.getInt();
+        if (length < 0 || buf.remaining() < length)
+          break;
+        long offset = buf.position();
+        buf.position(buf.position() + length);
+        out.write(indexRecord(k, offset, length));
+        index.put(new String(k, StandardCharsets.UTF_8), new Location(offset, length));
+        validEnd = buf.position();
+      }
+    }
+    if (validEnd != size)
+      segment.truncate(validEnd);
+    indexRead = indexFile.length();
+  }
+
+  private void remap() throws IOException {
+    mapped = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+  }
+
+  /**
+   * Closes the store and deletes its segment and index files.
+   */
+  public synchronized void delete() throws IOException {
+    close();
+    index.clear();
+    segmentFile.delete();
+    indexFile.delete();
+    lockFile.delete();
+  }
+
+  public String getPath() {
+    return segmentFile.getPath();
+  }
+}
@@ -0,0 +1,143 @@
+package util.webservice.cache;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Just enough of the tar format to read and write cache.tar.gz: regular files only, ustar
+ * headers, and when reading the long names of GNU (L) and pax (x) extended headers.
+ */
+public class TarArchive {
+
+  private static final int BLOCK = 512;
+
+  /**
+   * @return path -> contents of every regular file in a .tar.gz archive, in archive order
+   */
+  public static Map<String, byte[]> readTarGz(String path) throws IOException {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(path)))) {
+      byte[] header = new byte[BLOCK];
+      String longName = null;
+      while (true) {
+        try {
+          in.readFully(header);
+        } catch (EOFException e) {
+          break;
+        }
+        if (isZero(header))
+          break;
+        String name = string(header, 0, 100);
+        String prefix = string(header, 345, 155);
+        if (!prefix.isEmpty())
+          name = prefix + "/" + name;
+        String octalSize = string(header, 124, 12).trim();
+        long size = octalSize.isEmpty() ? 0 : Long.parseLong(octalSize, 8);
+        byte type = header[156];
+        byte[] data = new byte[(int) size];
+        in.readFully(data);
+        int pad = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        in.readFully(new byte[pad]);
+        if (type == 'L') {
+          longName = string(data, 0, data.length);
+          continue;
+        } else if (type == 'x') {
+          longName = paxPath(data);
+          continue;
+        }
+        if (longName != null) {
+          name = longName;
+          longName = null;
+        }
+        if (type == '0' || type == 0)
+          files.put(name, data);
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Writes the given files into a new .tar.gz archive. Paths longer than 100 bytes get a GNU
+   * long name entry.
+   */
+  public static void writeTarGz(String path, Map<String, byte[]> files) throws IOException {
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(path))) {
+      long mtime = System.currentTimeMillis() / 1000;
+      for (Map.Entry<String, byte[]> e : files.entrySet()) {
+        byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+        if (name.length > 100) {
+          out.write(header("././@LongLink", name.length + 1, mtime, (byte) 'L'));
+          out.write(name);
+          out.write(new byte[BLOCK - name.length % BLOCK]);
+        }
+        out.write(header(e.getKey(), e.getValue().length, mtime, (byte) '0'));
+        out.write(e.getValue());
+        out.write(new byte[(BLOCK - e.getValue().length % BLOCK) % BLOCK]);
+      }
+      out.write(new byte[2 * BLOCK]);
+    }
+  }
+
+  private static byte[] header(String name, long size, long mtime, byte type) {
+    byte[] h = new byte[BLOCK];
+    put(h, 0, 100, name);
+    put(h, 100, 8, "0000644");
+    put(h, 108, 8, "0000000");
+    put(h, 116, 8, "0000000");
+    put(h, 124, 12, String.format("%011o", size));
+    put(h, 136, 12, String.format("%011o", mtime));
+    Arrays.fill(h, 148, 156, (byte) ' ');
+    h[156] = type;
+    put(h, 257, 6, "ustar");
+    put(h, 263, 2, "00");
+    long checksum = 0;
+    for (byte b : h) {
+      checksum += b & 0xFF;
+    }
+    put(h, 148, 8, String.format("%06o", checksum));
+    h[155] = ' ';
+    return h;
+  }
+
+  /**
+   * @return the path of a pax extended header ("length key=value\n" records), or null
+   */
+  private static String paxPath(byte[] data) {
+    for (String record : new String(data, StandardCharsets.UTF_8).split("\n")) {
+      int space = record.indexOf(' ');
+      if (space > 0 && record.startsWith("path=", space + 1))
+        return record.substring(space + 6);
+    }
+    return null;
+  }
+
+  private static void put(byte[] h, int offset, int length, String value) {
+    byte[] b = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(b, 0, h, offset, Math.min(length, b.length));
+  }
+
+  private static String string(byte[] b, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && b[end] != 0)
+      end++;
+    return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isZero(byte[] b) {
+    for (byte x : b) {
+      if (x != 0)
+        return false;
+    }
+    return true;
+  }
+}
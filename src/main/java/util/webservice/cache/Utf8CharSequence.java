@@ -0,0 +1,144 @@
+package util.webservice.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only CharSequence over UTF-8 text in a (memory-mapped) byte buffer, so that text stored off
+ * the heap can be read char by char without being decoded into a String first. ASCII text is
+ * indexed directly; other text keeps the byte offset of every CHECKPOINT-th char and decodes
+ * forward from the nearest one, or from the char last read if that is nearer, so that reading the
+ * text from start to end decodes every char once.
+ */
+public class Utf8CharSequence implements CharSequence {
+
+  private static final int CHECKPOINT = 64;
+
+  private final ByteBuffer bytes;
+
+  private final int length;
+
+  /**
+   * Byte offset and char index of the code point holding char i * CHECKPOINT; null for ASCII text
+   */
+  private int[] checkpointBytes;
+
+  private int[] checkpointChars;
+
+  /**
+   * Byte offset (high half) and char index (low half) of the code point last read; one field, so
+   * that threads reading the same text never see the offset of one and the index of another
+   */
+  private volatile long cursor = 0;
+
+  /**
+   * @param bytes the UTF-8 text from position to limit
+   * @param length number of chars the text decodes to
+   */
+  public Utf8CharSequence(ByteBuffer bytes, int length) {
+    this.bytes = bytes.slice();
+    this.length = length;
+    if (length != this.bytes.limit())
+      indexCheckpoints();
+  }
+
+  private void indexCheckpoints() {
+    checkpointBytes = new int[length / CHECKPOINT + 1];
+    checkpointChars = new int[checkpointBytes.length];
+    int offset = 0;
+    int k = 0;
+    for (int c = 0; c < length;) {
+      byte b = bytes.get(offset);
+      int n = charCount(b);
+      // a surrogate pair may hold the checkpoint char in its second half
+      while (k < checkpointBytes.length && k * CHECKPOINT < c + n) {
+        checkpointBytes[k] = offset;
+        checkpointChars[k] = c;
+        k++;
+      }
+      c += n;
+      offset += byteCount(b);
+    }
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length)
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    if (checkpointBytes == null)
+      return (char) bytes.get(index);
+    int offset = checkpointBytes[index / CHECKPOINT];
+    int c = checkpointChars[index / CHECKPOINT];
+    long last = cursor;
+    if ((int) last <= index && (int) last > c) {
+      offset = (int) (last >>> 32);
+      c = (int) last;
+    }
+    while (true) {
+      byte b = bytes.get(offset);
+      int n = charCount(b);
+      if (index < c + n) {
+        cursor = (long) offset << 32 | c;
+        return decode(offset, index - c);
+      }
+      c += n;
+      offset += byteCount(b);
+    }
+  }
+
+  /**
+   * @param offset start of a UTF-8 sequence
+   * @param which 0, or 1 for the low surrogate of a supplementary code point
+   */
+  private char decode(int offset, int which) {
+    int b = bytes.get(offset) & 0xff;
+    int cp;
+    if (b < 0x80)
+      return (char) b;
+    else if (b < 0xe0)
+      cp = (b & 0x1f) << 6 | (bytes.get(offset + 1) & 0x3f);
+    else if (b < 0xf0)
+      cp = (b & 0x0f) << 12 | (bytes.get(offset + 1) & 0x3f) << 6
+              | (bytes.get(offset + 2) & 0x3f);
+    else
+      cp = (b & 0x07) << 18 | (bytes.get(offset + 1) & 0x3f) << 12
+              | (bytes.get(offset + 2) & 0x3f) << 6 | (bytes.get(offset + 3) & 0x3f);
+    if (cp < 0x10000)
+      return (char) cp;
+    return which == 0 ? Character.highSurrogate(cp) : Character.lowSurrogate(cp);
+  }
+
+  private static int byteCount(byte lead) {
+    int b = lead & 0xff;
+    return b < 0x80 ? 1 : b < 0xe0 ? 2 : b < 0xf0 ? 3 : 4;
+  }
+
+  private static int charCount(byte lead) {
+    return (lead & 0xff) >= 0xf0 ? 2 : 1;
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException(start + ", " + end);
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++)
+      sb.append(charAt(i));
+    return sb;
+  }
+
+  /**
+   * Decodes the whole text onto the heap
+   */
+  @Override
+  public String toString() {
+    ByteBuffer b = bytes.duplicate();
+    b.clear();
+    return StandardCharsets.UTF_8.decode(b).toString();
+  }
+}
@@ -0,0 +1,131 @@
+package util.webservice.cache;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer for caches in write-behind mode (see {@link ResultCache#setWriteBehind} and
+ * {@link SectionStore#setWriteBehind}). New entries are served from memory at once and written by
+ * one daemon thread in group commits: all entries pending in a cache go to its segment in one
+ * append, followed by one sync. A group
+ * commit starts once FLUSH_EVERY_ENTRIES entries are pending or FLUSH_EVERY_MS milliseconds have
+ * passed, whichever comes first, and once more from a shutdown hook when the JVM exits.
+ */
+public class WriteBehind {
+
+  /**
+   * Pending entries that start a group commit; 0 to commit on the timer only
+   */
+  public static int FLUSH_EVERY_ENTRIES = 256;
+
+  /**
+   * Milliseconds between group commits; 0 to commit on the entry count only
+   */
+  public static long FLUSH_EVERY_MS = 1000;
+
+  /**
+   * Force every group commit to the disk, so that a crash loses at most the pending entries
+   */
+  public static boolean SYNC = true;
+
+  /**
+   * A store whose pending entries the writer commits
+   */
+  interface Target {
+    /**
+     * Writes the entries pending now
+     *
+     * @return number of entries written
+     */
+    int flush() throws IOException;
+  }
+
+  private static WriteBehind instance = null;
+
+  private final Set<Target> dirty = ConcurrentHashMap.newKeySet();
+
+  private final AtomicInteger unwritten = new AtomicInteger();
+
+  private final Object signal = new Object();
+
+  private final AtomicLong commits = new AtomicLong();
+
+  private final AtomicLong written = new AtomicLong();
+
+  private WriteBehind() {
+    Thread writer = new Thread(this::run, "cache-write-behind");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "cache-write-behind-shutdown"));
+  }
+
+  public static synchronized WriteBehind getInstance() {
+    if (instance == null)
+      instance = new WriteBehind();
+    return instance;
+  }
+
+  /**
+   * @return the writer if a cache has started it, otherwise null; unlike {@link #getInstance()}
+   *         it does not start one
+   */
+  public static synchronized WriteBehind getExistingInstance() {
+    return instance;
+  }
+
+  /**
+   * Called by a cache after it has added a pending entry
+   */
+  void schedule(Target cache) {
+    dirty.add(cache);
+    if (FLUSH_EVERY_ENTRIES > 0 && unwritten.incrementAndGet() >= FLUSH_EVERY_ENTRIES) {
+      synchronized (signal) {
+        signal.notify();
+      }
+    }
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        synchronized (signal) {
+          if (FLUSH_EVERY_ENTRIES <= 0 || unwritten.get() < FLUSH_EVERY_ENTRIES)
+            signal.wait(FLUSH_EVERY_MS);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Writes the pending entries of all caches now
+   */
+  public void flush() {
+    unwritten.set(0);
+    for (Target cache : dirty) {
+      // a cache that gets new entries while it is written is marked dirty again
+      dirty.remove(cache);
+      try {
+        int n = cache.flush();
+        if (n > 0) {
+          commits.incrementAndGet();
+          written.addAndGet(n);
+        }
+      } catch (Exception e) {
+        // the entries stay pending and are tried again with the next commit
+        dirty.add(cache);
+        System.out.println("Exception: " + e.getMessage());
+      }
+    }
+  }
+
+  public String getStatistics() {
+    return String.format("Cache write-behind: %d entries in %d group commits", written.get(),
+            commits.get());
+  }
+}
@@ -0,0 +1,50 @@
+package util.webservice;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class QueryCanonicalizerTest {
+
+  private static void assertCanonical(String expected, String query) {
+    assertEquals(expected, QueryCanonicalizer.canonicalize(query));
+  }
+
+  @Test
+  public void normalizesWhitespaceAndCase() {
+    assertCanonical("breast cancer", "  Breast   CANCER ");
+  }
+
+  @Test
+  public void sortsOperandsOfOneOperator() {
+    assertCanonical("(a AND b) OR (c AND d)", "(c AND d) OR (b AND a)");
+  }
+
+  @Test
+  public void sortsJuxtaposedAndClauses() {
+    assertCanonical("a AND b c AND d", "c AND d a AND b");
+  }
+
+  @Test
+  public void keepsOrderOfJuxtaposedOrClauses() {
+    assertCanonical("c OR d a OR b", "c OR d a OR b");
+  }
+
+  @Test
+  public void keepsOrderOfJuxtaposedClausesMixingOperators() {
+    assertCanonical("c AND d a OR b", "c AND d a OR b");
+    assertCanonical("c OR d a AND b", "c OR d a AND b");
+  }
+
+  @Test
+  public void keepsOrderOfPlainJuxtaposedTerms() {
+    assertCanonical("lung cancer", "lung cancer");
+  }
+
+  @Test
+  public void keepsOrderWithNot() {
+    assertCanonical("c AND NOT a", "c AND NOT a");
+    assertCanonical("NOT b AND a", "NOT b AND a");
+    assertCanonical("d AND c NOT (a OR b)", "d AND c NOT (b OR a)");
+  }
+}
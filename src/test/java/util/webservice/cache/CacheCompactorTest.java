@@ -0,0 +1,70 @@
+package util.webservice.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.cmu.lti.oaqa.bio.bioasq.services.LinkedLifeDataServiceResponse.Entity;
+
+public class CacheCompactorTest {
+
+  private File dir;
+
+  private String cachePath;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("cachecompactor").toFile();
+    cachePath = dir.getPath() + File.separator;
+  }
+
+  @After
+  public void tearDown() {
+    delete(dir);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null)
+      for (File c : children)
+        delete(c);
+    f.delete();
+  }
+
+  @Test
+  public void canonicalizesOnlyTheQueryOfSuffixedKeys() {
+    assertEquals("(a AND b) #pages=2,candidates=30",
+            CacheCompactor.canonicalizeKey("(B  AND A) #pages=2,candidates=30"));
+    assertEquals("a OR b #ontologies=GENE,MESH",
+            CacheCompactor.canonicalizeKey("B OR A #ontologies=GENE,MESH"));
+    assertEquals("a OR b", CacheCompactor.canonicalizeKey("B OR A"));
+  }
+
+  @Test
+  public void compactionMovesSuffixedKeysToTheirCanonicalQuery() throws IOException {
+    ResultCache<Entity> cache = ResultCacheFactory.newEntityCache(cachePath, false, true, 0);
+    cache.open();
+    cache.put("B OR A #ontologies=GENE,MESH", Collections.<Entity> emptyList(), "test");
+    cache.put("a OR b #pages=2", Collections.<Entity> emptyList(), "test");
+    cache.close();
+
+    new CacheCompactor(cachePath).run(false);
+
+    cache = ResultCacheFactory.newEntityCache(cachePath, false, true, 0);
+    cache.open();
+    assertTrue(cache.containsKey("a OR b #ontologies=GENE,MESH"));
+    assertFalse(cache.containsKey("B OR A #ontologies=GENE,MESH"));
+    assertTrue(cache.containsKey("a OR b #pages=2"));
+    assertEquals(2, cache.getStore().keySet().size());
+    cache.close();
+  }
+}
@@ -0,0 +1,149 @@
+package util.webservice.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+  private static final RecordCodec<String> strings = new RecordCodec<String>() {
+    @Override
+    public byte[] encode(List<String> results) throws IOException {
+      return Payloads.encodeStrings(results);
+    }
+
+    @Override
+    public List<String> decode(ByteBuffer payload) throws IOException {
+      return Payloads.decodeStrings(payload);
+    }
+
+    @Override
+    public byte[] importLegacy(List<String> jsonLines) throws IOException {
+      return Payloads.encodeStrings(jsonLines);
+    }
+
+    @Override
+    public String getFormatName() {
+      return "str";
+    }
+  };
+
+  private File dir;
+
+  private ResultCache<String> cache;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("resultcache").toFile();
+    cache = open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    cache.close();
+    for (File f : dir.listFiles())
+      f.delete();
+    dir.delete();
+  }
+
+  private ResultCache<String> open() throws IOException {
+    ResultCache<String> c = new ResultCache<String>(dir.getPath() + File.separator, "test",
+            strings, true, 1 << 20);
+    // everything expires a millisecond after it is written
+    c.setTimeToLive(1, 1);
+    c.open();
+    return c;
+  }
+
+  private void putExpired(String key, List<String> results) throws InterruptedException {
+    cache.put(key, results, "test");
+    Thread.sleep(10);
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  public void failedRefreshServesAndKeepsExpiredEntry() throws Exception {
+    putExpired("q", Arrays.asList("a", "b"));
+    assertEquals(Arrays.asList("a", "b"), cache.getOrFetch("q", "test", () -> null));
+    // nothing was written in its place, not even after reopening
+    cache.close();
+    cache = open();
+    assertEquals(Arrays.asList("a", "b"), cache.getOrFetch("q", "test", () -> null));
+  }
+
+  @Test
+  public void successfulRefreshReplacesExpiredEntry() throws Exception {
+    putExpired("q", Arrays.asList("a", "b"));
+    assertEquals(Arrays.asList("c"), cache.getOrFetch("q", "test", () -> Arrays.asList("c")));
+    assertEquals(Arrays.asList("c"), cache.getOrFetch("q", "test", () -> null));
+  }
+
+  @Test
+  public void failedFetchOfMissingKeyCachesNothing() throws Exception {
+    assertNull(cache.getOrFetch("q", "test", () -> null));
+    assertEquals(false, cache.containsKey("q"));
+  }
+
+  @Test
+  public void partialResultIsServedButNotCachedByDefault() throws Exception {
+    assertEquals(Arrays.asList("a"), cache.getOrFetchResult("q", "test",
+            () -> Fetched.partial(Arrays.asList("a"))));
+    assertEquals(false, cache.containsKey("q"));
+  }
+
+  @Test
+  public void partialResultLastsOnlyThePartialTimeToLive() throws Exception {
+    cache.setTimeToLive(-1, -1);
+    cache.setPartialTimeToLive(1);
+    cache.getOrFetchResult("q", "test", () -> Fetched.partial(Arrays.asList("a")));
+    Thread.sleep(10);
+    assertNull(cache.get("q"));
+    cache.getOrFetchResult("q", "test", () -> Fetched.complete(Arrays.asList("a", "b")));
+    Thread.sleep(10);
+    assertEquals(Arrays.asList("a", "b"), cache.get("q"));
+  }
+
+  @Test
+  public void writeBehindPutReplacesDecodedEntry() throws Exception {
+    cache.setTimeToLive(-1, -1);
+    cache.put("q", Arrays.asList("a"), "test");
+    assertEquals(Arrays.asList("a"), cache.get("q"));
+    cache.setWriteBehind(true);
+    cache.put("q", Arrays.asList("b"), "test");
+    assertEquals(Arrays.asList("b"), cache.get("q"));
+    cache.flush();
+    assertEquals(Arrays.asList("b"), cache.get("q"));
+  }
+
+  @Test
+  public void importedEntriesExpireFromTheTimeOfTheirFile() throws Exception {
+    cache.close();
+    cache.clear();
+    File legacy = new File(dir, "test");
+    legacy.mkdir();
+    File recent = new File(legacy, "recent.txt");
+    Files.write(recent.toPath(), Arrays.asList("recent", "null"));
+    File old = new File(legacy, "old.txt");
+    Files.write(old.toPath(), Arrays.asList("old", "null"));
+    old.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+    cache = new ResultCache<String>(dir.getPath() + File.separator, "test", strings, true,
+            1 << 20);
+    cache.setTimeToLive(60 * 60 * 1000, 60 * 60 * 1000);
+    cache.open();
+    assertEquals(Arrays.asList(), cache.get("recent"));
+    assertNull(cache.get("old"));
+    recent.delete();
+    old.delete();
+    legacy.delete();
+  }
+}
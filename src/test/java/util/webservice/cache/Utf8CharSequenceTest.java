@@ -0,0 +1,43 @@
+package util.webservice.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class Utf8CharSequenceTest {
+
+  private static Utf8CharSequence view(String text) {
+    return new Utf8CharSequence(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+            text.length());
+  }
+
+  private static String text() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      sb.append("a\u00e9\u4e2d").appendCodePoint(0x1f600 + i % 50);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void readsForwardBackwardAndAtRandom() {
+    String text = text();
+    Utf8CharSequence view = view(text);
+    for (int i = 0; i < text.length(); i++)
+      assertEquals(text.charAt(i), view.charAt(i));
+    for (int i = text.length() - 1; i >= 0; i--)
+      assertEquals(text.charAt(i), view.charAt(i));
+    for (int i = 0; i < text.length(); i += 37)
+      assertEquals(text.charAt(text.length() - 1 - i), view.charAt(text.length() - 1 - i));
+  }
+
+  @Test
+  public void decodesWholeText() {
+    String text = text();
+    assertEquals(text, view(text).toString());
+    assertEquals(text.substring(100, 300), view(text).subSequence(100, 300).toString());
+  }
+}